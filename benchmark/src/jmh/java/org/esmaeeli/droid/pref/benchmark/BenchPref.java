@@ -0,0 +1,92 @@
+package org.esmaeeli.droid.pref.benchmark;
+
+import org.esmaeeli.droid.pref.PrefKey;
+import org.esmaeeli.droid.pref.PrefStorage;
+import org.esmaeeli.droid.pref.SharedPref;
+
+import java.util.Set;
+
+/**
+ * Exposes the protected API of {@link SharedPref} to the benchmarks, the same way an application
+ * store wraps it.
+ */
+public class BenchPref extends SharedPref {
+
+    public BenchPref(PrefStorage storage) {
+        super(storage);
+    }
+
+    @Override
+    protected int getVersion() {
+        return 1;
+    }
+
+    @Override
+    protected String getName() {
+        return "benchmark";
+    }
+
+    @Override
+    protected void migrate(int oldVersion, int newVersion) {
+    }
+
+    public boolean readBoolean(String key) {
+        return getBoolean(key, false);
+    }
+
+    public int readInt(String key) {
+        return getInt(key, 0);
+    }
+
+    public int readInt(PrefKey<Integer> key) {
+        return getInt(key);
+    }
+
+    public long readLong(String key) {
+        return getLong(key, 0);
+    }
+
+    public String readString(String key) {
+        return getString(key, null);
+    }
+
+    public boolean writeBoolean(String key, boolean value) {
+        return putBoolean(key, value);
+    }
+
+    public boolean writeInt(String key, int value) {
+        return putInt(key, value);
+    }
+
+    public boolean writeLong(String key, long value) {
+        return putLong(key, value);
+    }
+
+    public boolean writeFloat(String key, float value) {
+        return putFloat(key, value);
+    }
+
+    public boolean writeString(String key, String value) {
+        return putString(key, value);
+    }
+
+    public boolean writeStringSet(String key, Set<String> value) {
+        return putStringSet(key, value);
+    }
+
+    public Batch batch() {
+        return edit();
+    }
+
+    public boolean delete(String key) {
+        return deleteKey(key);
+    }
+
+    public boolean clear() {
+        return clearAll();
+    }
+
+    public void reloadCache() {
+        cacheAll();
+    }
+}
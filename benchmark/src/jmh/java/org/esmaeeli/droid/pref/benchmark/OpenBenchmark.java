@@ -0,0 +1,77 @@
+package org.esmaeeli.droid.pref.benchmark;
+
+import org.esmaeeli.droid.pref.MemoryPrefStorage;
+import org.esmaeeli.droid.pref.PrefStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a store as a function of its key count and value size. The file storages are created
+ * anew for every invocation, so their time includes reading the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OpenBenchmark {
+
+    @Param({Stores.MEMORY, Stores.FILE, Stores.LOG})
+    public String storage;
+
+    @Param({"10", "1000", "10000"})
+    public int keyCount;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    private File file;
+    private PrefStorage memory;
+    private PrefStorage opened;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Map<String, Object> values = Stores.values(keyCount, valueSize);
+        if (Stores.MEMORY.equals(storage)) {
+            values.put("file_version", 1);
+            memory = new MemoryPrefStorage(values);
+        } else {
+            file = Stores.tempFile();
+            PrefStorage writer = Stores.create(storage, file);
+            Stores.fill(new BenchPref(writer), values);
+            Stores.close(writer);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws IOException {
+        if (opened != memory) {
+            Stores.close(opened);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (file != null) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public BenchPref open() {
+        opened = memory != null ? memory : Stores.create(storage, file);
+        return new BenchPref(opened);
+    }
+}
@@ -0,0 +1,82 @@
+package org.esmaeeli.droid.pref.benchmark;
+
+import org.esmaeeli.droid.pref.MemoryPrefStorage;
+import org.esmaeeli.droid.pref.PrefKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cached reads, single threaded and contended by as many threads as there are cores. Reads never
+ * touch the storage, so the in-memory storage is used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadBenchmark {
+
+    @Param({"10", "1000"})
+    public int keyCount;
+
+    private static final PrefKey<Integer> INT = PrefKey.ofInt("int", 0);
+
+    private BenchPref pref;
+
+    @Setup
+    public void setUp() {
+        pref = new BenchPref(new MemoryPrefStorage(Stores.values(keyCount, 16)));
+        pref.writeInt("int", 1);
+        pref.writeLong("long", 2L);
+        pref.writeBoolean("boolean", true);
+    }
+
+    @Benchmark
+    public int getIntHit() {
+        return pref.readInt("int");
+    }
+
+    @Benchmark
+    public int getIntHitByHandle() {
+        return pref.readInt(INT);
+    }
+
+    @Benchmark
+    public long getLongHit() {
+        return pref.readLong("long");
+    }
+
+    @Benchmark
+    public boolean getBooleanHit() {
+        return pref.readBoolean("boolean");
+    }
+
+    @Benchmark
+    public String getStringHit() {
+        return pref.readString("key0");
+    }
+
+    @Benchmark
+    public int getIntMiss() {
+        return pref.readInt("missing");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int getIntContended() {
+        return pref.readInt("int");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String getStringContended() {
+        return pref.readString("key0");
+    }
+}
@@ -0,0 +1,88 @@
+package org.esmaeeli.droid.pref.benchmark;
+
+import org.esmaeeli.droid.pref.FilePrefStorage;
+import org.esmaeeli.droid.pref.LogPrefStorage;
+import org.esmaeeli.droid.pref.MemoryPrefStorage;
+import org.esmaeeli.droid.pref.PrefStorage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates the storages the benchmarks are parameterized with.
+ */
+final class Stores {
+
+    static final String MEMORY = "memory";
+    static final String FILE = "file";
+    static final String LOG = "log";
+
+    private Stores() {
+    }
+
+    /**
+     * @param type one of {@link #MEMORY}, {@link #FILE} or {@link #LOG}.
+     * @param file the backing file, ignored for {@link #MEMORY}.
+     */
+    static PrefStorage create(String type, File file) {
+
+        switch (type) {
+            case MEMORY:
+                return new MemoryPrefStorage();
+            case FILE:
+                return new FilePrefStorage(file);
+            case LOG:
+                return new LogPrefStorage(file);
+            default:
+                throw new IllegalArgumentException("Unknown storage " + type);
+        }
+    }
+
+    static File tempFile() throws IOException {
+
+        File file = File.createTempFile("droidpref", ".bench");
+        if (!file.delete()) {
+            throw new IOException("Failed to delete " + file);
+        }
+        file.deleteOnExit();
+        return file;
+    }
+
+    static void close(PrefStorage storage) throws IOException {
+
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+    }
+
+    /**
+     * Writes the values with a single commit.
+     */
+    static void fill(BenchPref pref, Map<String, Object> values) {
+
+        BenchPref.Batch batch = pref.batch();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            batch.putString(entry.getKey(), (String) entry.getValue());
+        }
+        batch.commit();
+    }
+
+    /**
+     * @return keyCount string values of valueSize characters each.
+     */
+    static Map<String, Object> values(int keyCount, int valueSize) {
+
+        StringBuilder value = new StringBuilder(valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        Map<String, Object> values = new HashMap<>(keyCount * 2);
+        for (int i = 0; i < keyCount; i++) {
+            values.put("key" + i, value.toString());
+        }
+        return values;
+    }
+}
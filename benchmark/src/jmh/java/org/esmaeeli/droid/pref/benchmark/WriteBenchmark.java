@@ -0,0 +1,126 @@
+package org.esmaeeli.droid.pref.benchmark;
+
+import org.esmaeeli.droid.pref.PrefStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every write path of {@link BenchPref} on each storage, on a store which already holds keyCount
+ * values. Writes to the file storages are synchronous and include the fsync.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteBenchmark {
+
+    @Param({Stores.MEMORY, Stores.FILE, Stores.LOG})
+    public String storage;
+
+    @Param({"100", "10000"})
+    public int keyCount;
+
+    private final Set<String> set = new HashSet<>(Arrays.asList("a", "b", "c"));
+    private File file;
+    private PrefStorage store;
+    private BenchPref pref;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Stores.tempFile();
+        store = Stores.create(storage, file);
+        pref = new BenchPref(store);
+        Stores.fill(pref, Stores.values(keyCount, 16));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Stores.close(store);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean putBoolean() {
+        return pref.writeBoolean("boolean", (++counter & 1) == 0);
+    }
+
+    @Benchmark
+    public boolean putInt() {
+        return pref.writeInt("int", ++counter);
+    }
+
+    @Benchmark
+    public boolean putLong() {
+        return pref.writeLong("long", ++counter);
+    }
+
+    @Benchmark
+    public boolean putFloat() {
+        return pref.writeFloat("float", ++counter);
+    }
+
+    @Benchmark
+    public boolean putString() {
+        return pref.writeString("string", (++counter & 1) == 0 ? "even" : "odd");
+    }
+
+    @Benchmark
+    public boolean putStringSet() {
+        return pref.writeStringSet("set", set);
+    }
+
+    @Benchmark
+    public void cacheAll() {
+        pref.reloadCache();
+    }
+
+    /**
+     * Deletes a key which is put back before each invocation.
+     */
+    @State(Scope.Thread)
+    public static class DeleteState {
+
+        @Setup(Level.Invocation)
+        public void putKey(WriteBenchmark benchmark) {
+            benchmark.pref.writeInt("deleted", 1);
+        }
+    }
+
+    @Benchmark
+    public boolean deleteKey(DeleteState state) {
+        return pref.delete("deleted");
+    }
+
+    /**
+     * Clears a store which is refilled with a few keys before each invocation.
+     */
+    @State(Scope.Thread)
+    public static class ClearState {
+
+        @Setup(Level.Invocation)
+        public void fill(WriteBenchmark benchmark) {
+            benchmark.pref.batch().putInt("a", 1).putInt("b", 2).putInt("c", 3).commit();
+        }
+    }
+
+    @Benchmark
+    public boolean clearAll(ClearState state) {
+        return pref.clear();
+    }
+}
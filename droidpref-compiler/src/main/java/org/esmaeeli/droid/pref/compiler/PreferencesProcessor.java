@@ -0,0 +1,520 @@
+package org.esmaeeli.droid.pref.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code SharedPref} implementation for every interface annotated with
+ * {@code org.esmaeeli.droid.pref.annotation.Preferences}, see its documentation for the rules the
+ * interface has to follow.
+ * <p>
+ * Each property becomes a {@code PrefKey} constant holding its key and default value, and its
+ * getter and setter read and write through that handle, so the generated code does no string
+ * keyed lookups of its own and uses no reflection. Annotations are matched by name, so the
+ * processor doesn't depend on the library.
+ */
+public final class PreferencesProcessor extends AbstractProcessor {
+
+    private static final String ANNOTATION_PACKAGE = "org.esmaeeli.droid.pref.annotation.";
+    private static final String PREFERENCES = ANNOTATION_PACKAGE + "Preferences";
+    private static final String KEY = ANNOTATION_PACKAGE + "Key";
+
+    private static final String KEY_VERSION = "file_version";
+
+    /**
+     * Methods of SharedPref without parameters, which a getter of the interface would clash with.
+     */
+    private static final Set<String> RESERVED_GETTERS = new HashSet<>(Arrays.asList(
+            "getVersion", "getName", "getWriteBehindDelay", "getLockStripeCount",
+            "getCacheByteLimit", "getBlobDirectory", "getInlineBytesLimit",
+            "isServingDefaultsUntilReady", "getReadyFuture", "getClass"));
+
+    /**
+     * The supported property types, with the suffix of their SharedPref accessors.
+     */
+    private enum Type {
+
+        BOOLEAN("Boolean", "boolean", "Boolean"),
+        INT("Int", "int", "Integer"),
+        LONG("Long", "long", "Long"),
+        FLOAT("Float", "float", "Float"),
+        STRING("String", "String", "String"),
+        STRING_SET("StringSet", "Set<String>", "Set<String>");
+
+        final String suffix;
+        final String javaType;
+        final String boxedType;
+
+        Type(String suffix, String javaType, String boxedType) {
+            this.suffix = suffix;
+            this.javaType = javaType;
+            this.boxedType = boxedType;
+        }
+
+        String defaultAnnotation() {
+            return ANNOTATION_PACKAGE + "Default" + suffix;
+        }
+    }
+
+    private static final class Property {
+
+        final String name;
+        Type type;
+        String key;
+        ExecutableElement getter;
+        final List<ExecutableElement> setters = new ArrayList<>();
+
+        Property(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class ProcessingException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        final Element element;
+
+        ProcessingException(Element element, String message) {
+            super(message);
+            this.element = element;
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+
+        Set<String> types = new HashSet<>();
+        types.add(PREFERENCES);
+        types.add(KEY);
+        for (Type type : Type.values()) {
+            types.add(type.defaultAnnotation());
+        }
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+        for (TypeElement annotation : annotations) {
+            if (!annotation.getQualifiedName().contentEquals(PREFERENCES)) {
+                continue;
+            }
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                try {
+                    if (element.getKind() != ElementKind.INTERFACE) {
+                        throw new ProcessingException(element,
+                                "@Preferences can only be applied to interfaces");
+                    }
+                    generate((TypeElement) element);
+
+                } catch (ProcessingException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            e.getMessage(), e.element);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "Failed to generate preferences: " + e.getMessage(), element);
+                }
+            }
+        }
+        return true;
+    }
+
+    // region Model
+    private void generate(TypeElement type) throws ProcessingException, IOException {
+
+        AnnotationMirror preferences = annotation(type, PREFERENCES);
+        //noinspection ConstantConditions
+        String name = (String) value(preferences, "name");
+        int version = (Integer) value(preferences, "version");
+        if (name.isEmpty()) {
+            throw new ProcessingException(type, "The preferences name must not be empty");
+        }
+
+        Properties properties = new Properties();
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(type))) {
+            if (method.getModifiers().contains(Modifier.ABSTRACT)) {
+                properties.add(method);
+            }
+        }
+        Set<String> keys = new HashSet<>();
+        for (Property property : properties.values()) {
+            if (property.key.equals(KEY_VERSION)) {
+                throw new ProcessingException(keyElement(property),
+                        "The key \"" + KEY_VERSION + "\" is reserved");
+            }
+            if (!keys.add(property.key)) {
+                throw new ProcessingException(keyElement(property),
+                        "Duplicate key \"" + property.key + "\"");
+            }
+        }
+
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String className = generatedName(type);
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(source(type, packageName, className, name, version, properties));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Groups the methods of an interface by property.
+     */
+    private final class Properties {
+
+        private final Map<String, Property> properties = new LinkedHashMap<>();
+
+        void add(ExecutableElement method) throws ProcessingException {
+
+            String name = method.getSimpleName().toString();
+            List<? extends Element> parameters = method.getParameters();
+            TypeKind returnKind = method.getReturnType().getKind();
+            if (parameters.isEmpty() && (name.startsWith("get") && name.length() > 3
+                    || name.startsWith("is") && name.length() > 2
+                    && returnKind == TypeKind.BOOLEAN)) {
+                if (RESERVED_GETTERS.contains(name)) {
+                    throw new ProcessingException(method,
+                            name + "() clashes with a method of SharedPref");
+                }
+                Property property = property(method, name.substring(name.startsWith("is") ? 2 : 3),
+                        method.getReturnType());
+                if (property.getter != null) {
+                    throw new ProcessingException(method,
+                            "Duplicate getter of \"" + property.name + "\"");
+                }
+                property.getter = method;
+
+            } else if (parameters.size() == 1 && name.startsWith("set") && name.length() > 3
+                    && (returnKind == TypeKind.VOID || returnKind == TypeKind.BOOLEAN)) {
+                if (annotation(method, KEY) != null) {
+                    throw new ProcessingException(method,
+                            "@Key applies to the getter of \"" + propertyName(name.substring(3))
+                                    + "\", not its setters");
+                }
+                Property property = property(method, name.substring(3),
+                        parameters.get(0).asType());
+                property.setters.add(method);
+
+            } else {
+                throw new ProcessingException(method, "Unsupported method " + name
+                        + ", expected a getter or a setter of a preference");
+            }
+        }
+
+        Collection<Property> values() {
+            return properties.values();
+        }
+
+        private Property property(ExecutableElement method, String suffix, TypeMirror typeMirror)
+                throws ProcessingException {
+
+            Type type = typeOf(typeMirror);
+            if (type == null) {
+                throw new ProcessingException(method, "Unsupported preference type " + typeMirror
+                        + ", expected boolean, int, long, float, String or Set<String>");
+            }
+            String name = propertyName(suffix);
+            Property property = properties.get(name);
+            if (property == null) {
+                property = new Property(name);
+                property.type = type;
+                property.key = name;
+                properties.put(name, property);
+            } else if (property.type != type) {
+                throw new ProcessingException(method, "\"" + name + "\" is a "
+                        + property.type.javaType + " elsewhere");
+            }
+            AnnotationMirror key = annotation(method, KEY);
+            if (key != null) {
+                property.key = (String) value(key, "value");
+            }
+            return property;
+        }
+    }
+
+    private static String propertyName(String suffix) {
+        return Character.toLowerCase(suffix.charAt(0)) + suffix.substring(1);
+    }
+
+    private Type typeOf(TypeMirror type) {
+
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Type.BOOLEAN;
+            case INT:
+                return Type.INT;
+            case LONG:
+                return Type.LONG;
+            case FLOAT:
+                return Type.FLOAT;
+            case DECLARED:
+                DeclaredType declared = (DeclaredType) type;
+                String name = ((TypeElement) declared.asElement()).getQualifiedName().toString();
+                if (name.equals("java.lang.String")) {
+                    return Type.STRING;
+                }
+                List<? extends TypeMirror> arguments = declared.getTypeArguments();
+                if (name.equals("java.util.Set") && arguments.size() == 1
+                        && arguments.get(0).toString().equals("java.lang.String")) {
+                    return Type.STRING_SET;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static Element keyElement(Property property) {
+        return property.getter != null ? property.getter : property.setters.get(0);
+    }
+    // endregion
+
+    // region Source
+    private String source(TypeElement type, String packageName, String className, String name,
+                          int version, Properties properties) throws ProcessingException {
+
+        boolean usesSets = false;
+        for (Property property : properties.values()) {
+            usesSets |= property.type == Type.STRING_SET;
+        }
+        String interfaceName = type.getQualifiedName().toString();
+        String visibility = type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "";
+
+        StringBuilder out = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("import android.content.Context;\n");
+        out.append("import android.support.annotation.NonNull;\n");
+        out.append("import android.support.annotation.Nullable;\n\n");
+        out.append("import org.esmaeeli.droid.pref.PrefKey;\n");
+        out.append("import org.esmaeeli.droid.pref.PrefStorage;\n");
+        out.append("import org.esmaeeli.droid.pref.SharedPref;\n\n");
+        if (usesSets) {
+            out.append("import java.util.Set;\n");
+        }
+        out.append("import java.util.concurrent.Executor;\n\n");
+        out.append("/**\n");
+        out.append(" * Generated by the DroidPref annotation processor from {@link ")
+                .append(interfaceName).append("}, do not edit.\n");
+        out.append(" */\n");
+        out.append(visibility).append("class ").append(className)
+                .append(" extends SharedPref implements ").append(interfaceName).append(" {\n\n");
+
+        // The name and version are inlined, the constant namespace belongs to the properties.
+        for (Property property : properties.values()) {
+            out.append("    private static final PrefKey<").append(property.type.boxedType)
+                    .append("> ").append(constantName(property.name)).append(" =\n")
+                    .append("            PrefKey.of").append(property.type.suffix).append('(')
+                    .append(literal(property.key)).append(", ").append(defaultValue(property))
+                    .append(");\n");
+        }
+        out.append('\n');
+
+        out.append("    ").append(visibility).append(className)
+                .append("(@NonNull Context context) {\n        super(context);\n    }\n\n");
+        out.append("    ").append(visibility).append(className)
+                .append("(@NonNull Context context, @Nullable Executor executor) {\n")
+                .append("        super(context, executor);\n    }\n\n");
+        out.append("    ").append(visibility).append(className)
+                .append("(@NonNull PrefStorage storage) {\n        super(storage);\n    }\n\n");
+        out.append("    ").append(visibility).append(className)
+                .append("(@NonNull PrefStorage storage, @Nullable Executor executor) {\n")
+                .append("        super(storage, executor);\n    }\n\n");
+
+        out.append("    @Override\n    protected int getVersion() {\n")
+                .append("        return ").append(version).append(";\n    }\n\n");
+        out.append("    @Override\n    protected String getName() {\n")
+                .append("        return ").append(literal(name)).append(";\n    }\n\n");
+        out.append("    @Override\n    protected void migrate(int oldVersion, int newVersion) {\n")
+                .append("    }\n");
+
+        for (Property property : properties.values()) {
+            String constant = constantName(property.name);
+            if (property.getter != null) {
+                out.append("\n    @Override\n    public ").append(property.type.javaType)
+                        .append(' ').append(property.getter.getSimpleName()).append("() {\n")
+                        .append("        return get").append(property.type.suffix).append('(')
+                        .append(constant).append(");\n    }\n");
+            }
+            for (ExecutableElement setter : property.setters) {
+                String parameter = setter.getParameters().get(0).getSimpleName().toString();
+                boolean returns = setter.getReturnType().getKind() == TypeKind.BOOLEAN;
+                out.append("\n    @Override\n    public ").append(returns ? "boolean " : "void ")
+                        .append(setter.getSimpleName()).append('(')
+                        .append(property.type.javaType).append(' ').append(parameter)
+                        .append(") {\n        ").append(returns ? "return " : "")
+                        .append("put").append(property.type.suffix).append('(').append(constant)
+                        .append(", ").append(parameter).append(");\n    }\n");
+            }
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private String defaultValue(Property property) throws ProcessingException {
+
+        Object value = null;
+        for (Type type : Type.values()) {
+            AnnotationMirror annotation = property.getter == null ? null
+                    : annotation(property.getter, type.defaultAnnotation());
+            if (annotation == null) {
+                continue;
+            }
+            if (type != property.type) {
+                throw new ProcessingException(property.getter, "@Default" + type.suffix
+                        + " doesn't fit the " + property.type.javaType + " \"" + property.name
+                        + "\"");
+            }
+            value = value(annotation, "value");
+        }
+
+        switch (property.type) {
+            case BOOLEAN:
+                return String.valueOf(value != null && (Boolean) value);
+            case INT:
+                return String.valueOf(value != null ? (Integer) value : 0);
+            case LONG:
+                return (value != null ? (Long) value : 0) + "L";
+            case FLOAT:
+                float f = value != null ? (Float) value : 0;
+                if (Float.isNaN(f)) {
+                    return "Float.NaN";
+                } else if (Float.isInfinite(f)) {
+                    return f > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+                }
+                return f + "f";
+            case STRING:
+                return value != null ? literal((String) value) : "null";
+            default:
+                return "null";
+        }
+    }
+
+    private static String constantName(String property) {
+
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < property.length(); i++) {
+            char c = property.charAt(i);
+            if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(property.charAt(i - 1))) {
+                name.append('_');
+            }
+            name.append(Character.toUpperCase(c));
+        }
+        return name.toString();
+    }
+
+    private static String literal(String value) {
+
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\r':
+                    literal.append("\\r");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+                    break;
+            }
+        }
+        return literal.append('"').toString();
+    }
+    // endregion
+
+    // region Elements
+    private static String generatedName(TypeElement type) {
+
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing.getKind() != ElementKind.PACKAGE) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append("Pref").toString();
+    }
+
+    private static PackageElement packageOf(Element element) {
+
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private static AnnotationMirror annotation(Element element, String name) {
+
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private Object value(AnnotationMirror annotation, String name) {
+
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : processingEnv.getElementUtils().getElementValuesWithDefaults(annotation)
+                .entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+    // endregion
+}
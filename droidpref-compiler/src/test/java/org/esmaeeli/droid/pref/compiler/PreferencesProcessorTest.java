@@ -0,0 +1,184 @@
+package org.esmaeeli.droid.pref.compiler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.*;
+
+public class PreferencesProcessorTest {
+
+    private File output;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @Before
+    public void setUp() throws IOException {
+        output = Files.createTempDirectory("droidpref-compiler").toFile();
+        diagnostics = new DiagnosticCollector<>();
+    }
+
+    @After
+    public void tearDown() {
+        delete(output);
+    }
+
+    @Test
+    public void generatesImplementation() throws IOException {
+        assertTrue(errors(), compile("test.Settings", "package test;\n"
+                + "import java.util.Set;\n"
+                + "import org.esmaeeli.droid.pref.annotation.*;\n"
+                + "@Preferences(name = \"settings\", version = 3)\n"
+                + "public interface Settings {\n"
+                + "    @DefaultInt(5) int getCount();\n"
+                + "    void setCount(int count);\n"
+                + "    @Key(\"dark\") boolean isDarkMode();\n"
+                + "    boolean setDarkMode(boolean darkMode);\n"
+                + "    @DefaultString(\"a \\\"b\\\"\") String getUserName();\n"
+                + "    @DefaultFloat(1.5f) float getScale();\n"
+                + "    @DefaultLong(7) long getSince();\n"
+                + "    Set<String> getTags();\n"
+                + "}\n"));
+
+        String source = new String(Files.readAllBytes(
+                new File(output, "test/SettingsPref.java").toPath()), Charset.forName("UTF-8"));
+        assertTrue(source.contains("public class SettingsPref extends SharedPref"
+                + " implements test.Settings {"));
+        assertTrue(source.contains("protected int getVersion() {\n        return 3;"));
+        assertTrue(source.contains("protected String getName() {\n        return \"settings\";"));
+        assertTrue(source.contains("PrefKey<Integer> COUNT =\n"
+                + "            PrefKey.ofInt(\"count\", 5);"));
+        assertTrue(source.contains("PrefKey.ofBoolean(\"dark\", false);"));
+        assertTrue(source.contains("PrefKey<String> USER_NAME =\n"
+                + "            PrefKey.ofString(\"userName\", \"a \\\"b\\\"\");"));
+        assertTrue(source.contains("PrefKey.ofFloat(\"scale\", 1.5f);"));
+        assertTrue(source.contains("PrefKey.ofLong(\"since\", 7L);"));
+        assertTrue(source.contains("PrefKey<Set<String>> TAGS =\n"
+                + "            PrefKey.ofStringSet(\"tags\", null);"));
+        assertTrue(source.contains("return getInt(COUNT);"));
+        assertTrue(source.contains("public void setCount(int count) {\n"
+                + "        putInt(COUNT, count);"));
+        assertTrue(source.contains("public boolean setDarkMode(boolean darkMode) {\n"
+                + "        return putBoolean(DARK_MODE, darkMode);"));
+    }
+
+    @Test
+    public void compilesNameAndVersionProperties() throws IOException {
+        assertTrue(errors(), compile("test.Account", "package test;\n"
+                + "import org.esmaeeli.droid.pref.annotation.*;\n"
+                + "@Preferences(name = \"account\")\n"
+                + "public interface Account {\n"
+                + "    void setName(String name);\n"
+                + "    void setVersion(int version);\n"
+                + "}\n"));
+    }
+
+    @Test
+    public void rejectsUnsupportedMethods() throws IOException {
+        assertFalse(process("test.Broken", "package test;\n"
+                + "import org.esmaeeli.droid.pref.annotation.*;\n"
+                + "@Preferences(name = \"broken\")\n"
+                + "public interface Broken {\n"
+                + "    double getRatio();\n"
+                + "}\n"));
+        assertTrue(errors().contains("Unsupported preference type double"));
+    }
+
+    @Test
+    public void rejectsKeysOnSetters() throws IOException {
+        assertFalse(process("test.Broken", "package test;\n"
+                + "import org.esmaeeli.droid.pref.annotation.*;\n"
+                + "@Preferences(name = \"broken\")\n"
+                + "public interface Broken {\n"
+                + "    int getCount();\n"
+                + "    @Key(\"total\") void setCount(int count);\n"
+                + "}\n"));
+        assertTrue(errors().contains("@Key applies to the getter of \"count\", not its setters"));
+    }
+
+    @Test
+    public void rejectsMismatchedDefaults() throws IOException {
+        assertFalse(process("test.Broken", "package test;\n"
+                + "import org.esmaeeli.droid.pref.annotation.*;\n"
+                + "@Preferences(name = \"broken\")\n"
+                + "public interface Broken {\n"
+                + "    @DefaultString(\"1\") int getCount();\n"
+                + "}\n"));
+        assertTrue(errors().contains("@DefaultString doesn't fit the int \"count\""));
+    }
+
+    /**
+     * Runs the processor only.
+     */
+    private boolean process(String className, String source) throws IOException {
+        return run(className, source, Arrays.asList("-proc:only", "-s", output.getPath(),
+                "-sourcepath", System.getProperty("droidpref.sources")));
+    }
+
+    /**
+     * Runs the processor and compiles the generated classes against the library sources.
+     */
+    private boolean compile(String className, String source) throws IOException {
+        return run(className, source, Arrays.asList("-s", output.getPath(),
+                "-d", output.getPath(), "-encoding", "UTF-8", "-sourcepath",
+                System.getProperty("droidpref.sources") + File.pathSeparator
+                        + System.getProperty("droidpref.stubs")));
+    }
+
+    private boolean run(String className, final String source, List<String> options)
+            throws IOException {
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        JavaFileObject file = new SimpleJavaFileObject(
+                URI.create("string:///" + className.replace('.', '/') + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaCompiler.CompilationTask task = compiler.getTask(new StringWriter(), null,
+                diagnostics, options, null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new PreferencesProcessor()));
+        return task.call();
+    }
+
+    private String errors() {
+
+        StringBuilder errors = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.append(diagnostic.getMessage(null)).append('\n');
+            }
+        }
+        return errors.toString();
+    }
+
+    private static void delete(File file) {
+
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,6 @@
+package android.annotation;
+
+public @interface SuppressLint {
+
+    String[] value();
+}
@@ -0,0 +1,16 @@
+package android.content;
+
+import java.io.File;
+
+public abstract class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+
+    public abstract Context getApplicationContext();
+
+    public abstract File getFilesDir();
+
+    public abstract void registerComponentCallbacks(ComponentCallbacks callback);
+}
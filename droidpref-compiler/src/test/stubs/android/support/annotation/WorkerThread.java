@@ -0,0 +1,4 @@
+package android.support.annotation;
+
+public @interface WorkerThread {
+}
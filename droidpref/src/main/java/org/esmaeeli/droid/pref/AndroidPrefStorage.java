@@ -0,0 +1,106 @@
+package org.esmaeeli.droid.pref;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link PrefStorage} backed by {@link SharedPreferences}, used by
+ * {@link SharedPref#SharedPref(android.content.Context)}.
+ */
+public final class AndroidPrefStorage implements PrefStorage {
+
+    private final SharedPreferences preferences;
+
+    public AndroidPrefStorage(@NonNull SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, ?> getAll() {
+        return preferences.getAll();
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) {
+        return preferences.contains(key);
+    }
+
+    @Override
+    public boolean getBoolean(@NonNull String key, boolean defValue) {
+        return preferences.getBoolean(key, defValue);
+    }
+
+    @Override
+    public int getInt(@NonNull String key, int defValue) {
+        return preferences.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(@NonNull String key, long defValue) {
+        return preferences.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(@NonNull String key, float defValue) {
+        return preferences.getFloat(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public String getString(@NonNull String key, @Nullable String defValue) {
+        return preferences.getString(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(@NonNull String key, @Nullable Set<String> defValue) {
+        return preferences.getStringSet(key, defValue);
+    }
+
+    @SuppressLint("ApplySharedPref")
+    @Override
+    public boolean commit(@NonNull PrefChanges changes) {
+        return edit(changes).commit();
+    }
+
+    @Override
+    public void apply(@NonNull PrefChanges changes) {
+        edit(changes).apply();
+    }
+
+    @NonNull
+    private SharedPreferences.Editor edit(@NonNull PrefChanges changes) {
+
+        SharedPreferences.Editor editor = preferences.edit();
+        if (changes.isClear()) {
+            editor.clear();
+        }
+        for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null) {
+                editor.remove(key);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else {
+                //noinspection unchecked
+                editor.putStringSet(key, (Set<String>) value);
+            }
+        }
+        return editor;
+    }
+}
@@ -0,0 +1,19 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+
+/**
+ * A {@link PrefStorage} which can hand out its String and string set values undecoded, so that
+ * {@link SharedPref} caches them as they are and only decodes the values which are read.
+ */
+interface EncodedPrefStorage extends PrefStorage {
+
+    /**
+     * Like {@link #getAll()}, except that String and string set values may be
+     * {@link EncodedValue}s.
+     */
+    @NonNull
+    Map<String, ?> getAllEncoded();
+}
@@ -0,0 +1,96 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A String or string set value which is still in its {@link PrefCodec} encoding, a slice of the
+ * buffer a storage was loaded from. It is decoded on each access and the decoded value is not
+ * kept, so that a value {@link PrefCache} evicts is only held as its encoding, while writing it
+ * back copies the encoded bytes without decoding them.
+ * <p>
+ * Encoded values only live in storages and in {@link PrefCache}, which decode them before
+ * handing them out. The cache keeps the decoded value until it evicts it.
+ */
+final class EncodedValue {
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private final byte type;
+
+    EncodedValue(@NonNull byte[] data, int offset, int length, byte type) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.type = type;
+    }
+
+    /**
+     * @return the {@link PrefCache} type of the value.
+     */
+    byte getType() {
+        return type;
+    }
+
+    /**
+     * @return the length of the encoding in bytes.
+     */
+    int getLength() {
+        return length;
+    }
+
+    @NonNull
+    Object decode() {
+
+        try {
+            return PrefCodec.readValue(
+                    new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Damaged value", e);
+        }
+    }
+
+    /**
+     * @return whether the value is a String starting with the given prefix. Only compressed
+     * Strings are decoded to tell.
+     */
+    boolean startsWith(@NonNull String prefix) {
+
+        if (type != PrefCache.TYPE_STRING) {
+            return false;
+        }
+        if (data[offset] != PrefCache.TYPE_STRING) {
+            return ((String) decode()).startsWith(prefix);
+        }
+        // The type byte and the length precede the UTF-8 bytes.
+        byte[] bytes = prefix.getBytes(PrefCodec.UTF_8);
+        int start = offset + 5;
+        if (length - 5 < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (data[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void writeTo(@NonNull DataOutput out) throws IOException {
+        out.write(data, offset, length);
+    }
+
+    /**
+     * @return the given value, decoded if it is an encoded value.
+     */
+    @Nullable
+    static Object decode(@Nullable Object value) {
+        return value instanceof EncodedValue ? ((EncodedValue) value).decode() : value;
+    }
+}
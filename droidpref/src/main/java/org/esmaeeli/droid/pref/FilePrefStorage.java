@@ -0,0 +1,199 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link PrefStorage} which keeps its values in a single binary file, using only plain Java
+ * APIs. Like {@link android.content.SharedPreferences} it holds all values in memory and rewrites
+ * the whole file on every commit, writing a temporary file first and renaming it over the old one.
+ * <p>
+ * The file is loaded on first access, a file which can't be read fails that access with an
+ * {@link IllegalStateException}. String and string set values are kept encoded, as slices of the
+ * loaded file, until they are read, and values which weren't read are written back by copying
+ * their bytes. A {@link SharedPref} on top caches them encoded as well. Large String values can
+ * be compressed, see {@link PrefCompression}.
+ */
+public final class FilePrefStorage implements EncodedPrefStorage {
+
+    private static final int MAGIC = 0x44504631; // DPF1
+
+    private final File file;
+    private final PrefCompression compression;
+    private Map<String, Object> values;
+
+    public FilePrefStorage(@NonNull File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param compression the compression of large String values, or null to write them as they
+     *                    are. Values which are written back without being read keep the
+     *                    compression they were written with.
+     */
+    public FilePrefStorage(@NonNull File file, @Nullable PrefCompression compression) {
+        this.file = file;
+        this.compression = compression;
+    }
+
+    @NonNull
+    @Override
+    public synchronized Map<String, ?> getAll() {
+
+        Map<String, Object> values = new HashMap<>(values());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            entry.setValue(EncodedValue.decode(entry.getValue()));
+        }
+        return values;
+    }
+
+    @NonNull
+    @Override
+    public synchronized Map<String, ?> getAllEncoded() {
+        return new HashMap<>(values());
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        return values().containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(@NonNull String key, boolean defValue) {
+        Boolean value = (Boolean) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized int getInt(@NonNull String key, int defValue) {
+        Integer value = (Integer) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(@NonNull String key, long defValue) {
+        Long value = (Long) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(@NonNull String key, float defValue) {
+        Float value = (Float) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(@NonNull String key, @Nullable String defValue) {
+        String value = (String) EncodedValue.decode(values().get(key));
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Set<String> getStringSet(@NonNull String key,
+                                                 @Nullable Set<String> defValue) {
+        //noinspection unchecked
+        Set<String> value = (Set<String>) EncodedValue.decode(values().get(key));
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized boolean commit(@NonNull PrefChanges changes) {
+
+        Map<String, Object> next = new HashMap<>(values());
+        changes.applyTo(next);
+        try {
+            write(next);
+        } catch (IOException e) {
+            return false;
+        }
+        values = next;
+        return true;
+    }
+
+    /**
+     * Same as {@link #commit(PrefChanges)}, this storage has no asynchronous writer.
+     */
+    @Override
+    public void apply(@NonNull PrefChanges changes) {
+        commit(changes);
+    }
+
+    @NonNull
+    private Map<String, Object> values() {
+
+        if (values == null) {
+            try {
+                values = read();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read " + file, e);
+            }
+        }
+        return values;
+    }
+
+    @NonNull
+    private Map<String, Object> read() throws IOException {
+
+        Map<String, Object> result = new HashMap<>();
+        if (!file.exists()) {
+            return result;
+        }
+        byte[] buffer = new byte[(int) file.length()];
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            new DataInputStream(stream).readFully(buffer);
+        } finally {
+            stream.close();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a preferences file");
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = PrefCodec.readString(in);
+            result.put(key, PrefCodec.readEncodedValue(buffer, in));
+        }
+        return result;
+    }
+
+    private void write(@NonNull Map<String, Object> next) throws IOException {
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(next.size());
+            for (Map.Entry<String, Object> entry : next.entrySet()) {
+                PrefCodec.writeString(out, entry.getKey());
+                PrefCodec.writeValue(out, entry.getValue(), compression);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,652 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link PrefStorage} which appends every commit to a binary log instead of rewriting all
+ * values, so the I/O of a commit grows with the size of the change rather than with the size of
+ * the store.
+ * <p>
+ * The file starts with a header followed by frames, one per commit. A frame holds its payload
+ * length, the CRC32 of the payload and the payload itself, which is a sequence of put, remove
+ * and clear records. Frames make commits atomic: a frame which was cut short or damaged by a
+ * crash is dropped, together with everything after it, when the log is loaded.
+ * <p>
+ * Once the log has grown to twice the size of its last compaction plus
+ * {@link #COMPACTION_SLACK_BYTES}, it is compacted into a single frame holding the current values,
+ * written to a temporary file which then replaces the log.
+ * <p>
+ * All values are held in memory. The log is loaded on first access, a log which can't be read
+ * fails that access with an {@link IllegalStateException}. Large String values can be
+ * compressed, see {@link PrefCompression}.
+ * <p>
+ * In multi-process mode every process opens its own storage on the same file. Loads, commits and
+ * compactions then hold an exclusive lock on a stamp file next to the log, which is memory mapped
+ * and holds the generation, bumped by every commit, and the number of compactions. Before
+ * appending, a commit replays the frames other processes appended since its last look, and
+ * {@link #refresh()} does the same for readers, so the getters of this storage see the commits of
+ * other processes once either of them ran.
+ */
+public final class LogPrefStorage implements MultiProcessPrefStorage, Closeable {
+
+    private static final int MAGIC = 0x44504C31; // DPL1
+    private static final int HEADER_SIZE = 4;
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_CLEAR = 3;
+
+    /**
+     * The number of bytes the log may grow by past twice its compacted size before it is
+     * compacted, which keeps small stores from compacting on nearly every commit.
+     */
+    public static final long COMPACTION_SLACK_BYTES = 64 * 1024;
+
+    private static final int STAMP_SIZE = 16;
+    private static final int STAMP_GENERATION = 0;
+    private static final int STAMP_COMPACTIONS = 8;
+
+    /**
+     * Monitors serializing the storages of a file within this process, since file locks are held
+     * per process and overlapping locks of one process fail.
+     */
+    private static final ConcurrentMap<String, Object> FILE_MONITORS = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final boolean multiProcess;
+    private final PrefCompression compression;
+    private Map<String, Object> values;
+    private RandomAccessFile log;
+    private long compactedSize;
+
+    /**
+     * Multi-process state: the mapped stamp, the generation and compaction count the values
+     * reflect, the end of the replayed log and the changes of other processes which were replayed
+     * but not returned by {@link #refresh()} yet.
+     */
+    private RandomAccessFile stampFile;
+    private volatile ByteBuffer stamp;
+    private long generation;
+    private long compactions;
+    private long position;
+    private PrefChanges foreignChanges = new PrefChanges();
+
+    public LogPrefStorage(@NonNull File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param multiProcess whether other processes may write to the same file, see
+     *                     {@link MultiProcessPrefStorage}.
+     */
+    public LogPrefStorage(@NonNull File file, boolean multiProcess) {
+        this(file, multiProcess, null);
+    }
+
+    /**
+     * @param compression the compression of large String values, or null to write them as they
+     *                    are.
+     */
+    public LogPrefStorage(@NonNull File file, boolean multiProcess,
+                          @Nullable PrefCompression compression) {
+        this.file = file;
+        this.multiProcess = multiProcess;
+        this.compression = compression;
+    }
+
+    @NonNull
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values());
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        return values().containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(@NonNull String key, boolean defValue) {
+        Boolean value = (Boolean) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized int getInt(@NonNull String key, int defValue) {
+        Integer value = (Integer) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(@NonNull String key, long defValue) {
+        Long value = (Long) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(@NonNull String key, float defValue) {
+        Float value = (Float) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(@NonNull String key, @Nullable String defValue) {
+        String value = (String) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Set<String> getStringSet(@NonNull String key,
+                                                 @Nullable Set<String> defValue) {
+        //noinspection unchecked
+        Set<String> value = (Set<String>) values().get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized boolean commit(@NonNull PrefChanges changes) {
+
+        values();
+        if (changes.isEmpty()) {
+            return true;
+        }
+        if (!multiProcess) {
+            return append(changes);
+        }
+        synchronized (fileMonitor()) {
+            FileLock fileLock = null;
+            try {
+                fileLock = lockStamp();
+                catchUp();
+                if (!append(changes)) {
+                    return false;
+                }
+                if (!foreignChanges.isEmpty()) {
+                    // Keeps changes of other processes replayed above from hiding these.
+                    foreignChanges.merge(changes);
+                }
+                ByteBuffer stamp = stamp();
+                generation = stamp.getLong(STAMP_GENERATION) + 1;
+                stamp.putLong(STAMP_GENERATION, generation);
+                return true;
+
+            } catch (IOException e) {
+                return false;
+            } finally {
+                release(fileLock);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #commit(PrefChanges)}, this storage has no asynchronous writer.
+     */
+    @Override
+    public void apply(@NonNull PrefChanges changes) {
+        commit(changes);
+    }
+
+    /**
+     * Rewrites the log as a single frame holding the current values.
+     */
+    public synchronized void compact() throws IOException {
+
+        values();
+        if (!multiProcess) {
+            rewrite();
+            return;
+        }
+        synchronized (fileMonitor()) {
+            FileLock fileLock = lockStamp();
+            try {
+                catchUp();
+                rewrite();
+            } finally {
+                release(fileLock);
+            }
+        }
+    }
+
+    /**
+     * @return the generation of the log, which stays zero when not in multi-process mode.
+     */
+    @Override
+    public long getGeneration() {
+
+        if (!multiProcess) {
+            return 0;
+        }
+        ByteBuffer stamp = this.stamp;
+        if (stamp == null) {
+            try {
+                stamp = mapStamp();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to map the stamp of " + file, e);
+            }
+        }
+        return stamp.getLong(STAMP_GENERATION);
+    }
+
+    @NonNull
+    @Override
+    public synchronized PrefChanges refresh() {
+
+        if (!multiProcess) {
+            return new PrefChanges();
+        }
+        values();
+        synchronized (fileMonitor()) {
+            FileLock fileLock = null;
+            try {
+                if (stamp().getLong(STAMP_GENERATION) != generation) {
+                    fileLock = lockStamp();
+                    catchUp();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read " + file, e);
+            } finally {
+                release(fileLock);
+            }
+        }
+        PrefChanges changes = foreignChanges;
+        foreignChanges = new PrefChanges();
+        return changes;
+    }
+
+    /**
+     * Appends the changes as a frame and compacts the log if it grew too large, must be called
+     * while holding the file lock in multi-process mode.
+     */
+    private boolean append(@NonNull PrefChanges changes) {
+
+        RandomAccessFile log;
+        try {
+            log = log();
+            long end = log.length();
+            try {
+                log.seek(end);
+                log.write(frame(changes));
+                log.getFD().sync();
+            } catch (IOException e) {
+                log.setLength(end);
+                throw e;
+            }
+            position = log.length();
+            changes.applyTo(values);
+
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            if (log.length() > 2 * compactedSize + COMPACTION_SLACK_BYTES) {
+                rewrite();
+            }
+        } catch (IOException ignored) {
+            // The commit is durable in the log, compaction is retried by the next commit.
+        }
+        return true;
+    }
+
+    /**
+     * Compacts the log, must be called while holding the file lock in multi-process mode.
+     */
+    private void rewrite() throws IOException {
+
+        Map<String, Object> current = values;
+        PrefChanges snapshot = new PrefChanges();
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            if (!snapshot.isEmpty()) {
+                out.write(frame(snapshot));
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        closeLog();
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+        compactedSize = file.length();
+        position = compactedSize;
+        if (multiProcess) {
+            ByteBuffer stamp = stamp();
+            compactions = stamp.getLong(STAMP_COMPACTIONS) + 1;
+            generation = stamp.getLong(STAMP_GENERATION) + 1;
+            stamp.putLong(STAMP_COMPACTIONS, compactions);
+            stamp.putLong(STAMP_GENERATION, generation);
+        }
+    }
+
+    /**
+     * Closes the log file, it is opened again by the next commit.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        closeLog();
+        if (stampFile != null) {
+            stampFile.close();
+            stampFile = null;
+        }
+    }
+
+    private void closeLog() throws IOException {
+
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    @NonNull
+    private Map<String, Object> values() {
+
+        if (values == null) {
+            try {
+                values = multiProcess ? lockedLoad() : load();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read " + file, e);
+            }
+        }
+        return values;
+    }
+
+    @NonNull
+    private RandomAccessFile log() throws IOException {
+
+        if (log == null) {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            log = new RandomAccessFile(file, "rw");
+            if (log.length() < HEADER_SIZE) {
+                log.setLength(0);
+                log.writeInt(MAGIC);
+            }
+        }
+        return log;
+    }
+
+    @NonNull
+    private Map<String, Object> lockedLoad() throws IOException {
+
+        synchronized (fileMonitor()) {
+            FileLock fileLock = lockStamp();
+            try {
+                ByteBuffer stamp = stamp();
+                generation = stamp.getLong(STAMP_GENERATION);
+                compactions = stamp.getLong(STAMP_COMPACTIONS);
+                return load();
+            } finally {
+                release(fileLock);
+            }
+        }
+    }
+
+    /**
+     * Replays what other processes committed since the values were loaded or last caught up,
+     * recording their changes in {@link #foreignChanges}. Reloads the log after another process
+     * compacted it, recording the difference. Must be called while holding the file lock.
+     */
+    private void catchUp() throws IOException {
+
+        ByteBuffer stamp = stamp();
+        long latest = stamp.getLong(STAMP_GENERATION);
+        if (latest == generation) {
+            return;
+        }
+        long latestCompactions = stamp.getLong(STAMP_COMPACTIONS);
+        if (latestCompactions != compactions) {
+            // The log was replaced, the open file is the old one.
+            closeLog();
+            Map<String, Object> previous = values;
+            values = load();
+            for (String key : previous.keySet()) {
+                if (!values.containsKey(key)) {
+                    foreignChanges.remove(key);
+                }
+            }
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                    foreignChanges.put(entry.getKey(), entry.getValue());
+                }
+            }
+        } else {
+            replayFrom(position, values, foreignChanges);
+        }
+        generation = latest;
+        compactions = latestCompactions;
+    }
+
+    /**
+     * Replays the log, dropping a damaged tail.
+     */
+    @NonNull
+    private Map<String, Object> load() throws IOException {
+
+        Map<String, Object> result = new HashMap<>();
+        if (!file.exists()) {
+            // The header is written when the log is created.
+            position = HEADER_SIZE;
+            return result;
+        }
+        RandomAccessFile log = log();
+        log.seek(0);
+        if (log.readInt() != MAGIC) {
+            throw new IOException("Not a preferences log");
+        }
+        compactedSize = replayFrom(HEADER_SIZE, result, null);
+        return result;
+    }
+
+    /**
+     * Replays the frames from the given position on and truncates a damaged tail, which is safe
+     * because appending frames requires the lock the caller holds.
+     *
+     * @return the end of the last intact frame.
+     */
+    private long replayFrom(long position, @NonNull Map<String, Object> target,
+                            @Nullable PrefChanges changes) throws IOException {
+
+        RandomAccessFile log = log();
+        long length = log.length();
+        log.seek(position);
+        while (position + FRAME_HEADER_SIZE <= length) {
+            int size = log.readInt();
+            int crc = log.readInt();
+            if (size < 0 || position + FRAME_HEADER_SIZE + size > length) {
+                break;
+            }
+            byte[] payload = new byte[size];
+            log.readFully(payload);
+            if (crc(payload) != crc) {
+                break;
+            }
+            replay(payload, target, changes);
+            position += FRAME_HEADER_SIZE + size;
+        }
+        if (position < length) {
+            log.setLength(position);
+        }
+        this.position = position;
+        return position;
+    }
+
+    private static void replay(@NonNull byte[] payload, @NonNull Map<String, Object> target,
+                               @Nullable PrefChanges changes) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        while (in.available() > 0) {
+            byte record = in.readByte();
+            switch (record) {
+                case RECORD_PUT:
+                    String key = PrefCodec.readString(in);
+                    Object value = PrefCodec.readValue(in);
+                    target.put(key, value);
+                    if (changes != null) {
+                        changes.put(key, value);
+                    }
+                    break;
+                case RECORD_REMOVE:
+                    String removed = PrefCodec.readString(in);
+                    target.remove(removed);
+                    if (changes != null) {
+                        changes.remove(removed);
+                    }
+                    break;
+                case RECORD_CLEAR:
+                    target.clear();
+                    if (changes != null) {
+                        changes.clear();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + record);
+            }
+        }
+    }
+
+    @NonNull
+    private Object fileMonitor() {
+
+        String path = file.getAbsolutePath();
+        Object monitor = FILE_MONITORS.get(path);
+        if (monitor == null) {
+            Object created = new Object();
+            monitor = FILE_MONITORS.putIfAbsent(path, created);
+            if (monitor == null) {
+                monitor = created;
+            }
+        }
+        return monitor;
+    }
+
+    @NonNull
+    private FileLock lockStamp() throws IOException {
+        return stampChannel().lock();
+    }
+
+    /**
+     * Opens the stamp file, again if an interrupt closed its channel.
+     */
+    @NonNull
+    private FileChannel stampChannel() throws IOException {
+
+        if (stampFile == null || !stampFile.getChannel().isOpen()) {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            stampFile = new RandomAccessFile(file.getPath() + ".stamp", "rw");
+        }
+        return stampFile.getChannel();
+    }
+
+    @NonNull
+    private ByteBuffer stamp() throws IOException {
+
+        ByteBuffer stamp = this.stamp;
+        return stamp != null ? stamp : mapStamp();
+    }
+
+    /**
+     * Maps the stamp file, the mapping stays valid after the file is closed.
+     */
+    @NonNull
+    private synchronized ByteBuffer mapStamp() throws IOException {
+
+        if (stamp == null) {
+            stamp = stampChannel().map(FileChannel.MapMode.READ_WRITE, 0, STAMP_SIZE);
+        }
+        return stamp;
+    }
+
+    private static void release(@Nullable FileLock fileLock) {
+
+        if (fileLock != null) {
+            try {
+                fileLock.release();
+            } catch (IOException ignored) {
+                // Closing the channel releases the lock as well.
+            }
+        }
+    }
+
+    @NonNull
+    private byte[] frame(@NonNull PrefChanges changes) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        if (changes.isClear()) {
+            out.writeByte(RECORD_CLEAR);
+        }
+        for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+            if (entry.getValue() == null) {
+                out.writeByte(RECORD_REMOVE);
+                PrefCodec.writeString(out, entry.getKey());
+            } else {
+                out.writeByte(RECORD_PUT);
+                PrefCodec.writeString(out, entry.getKey());
+                PrefCodec.writeValue(out, entry.getValue(), compression);
+            }
+        }
+        out.flush();
+
+        byte[] frame = bytes.toByteArray();
+        int size = frame.length - FRAME_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(frame, FRAME_HEADER_SIZE, size);
+        writeInt(frame, 0, size);
+        writeInt(frame, 4, (int) crc.getValue());
+        return frame;
+    }
+
+    private static int crc(@NonNull byte[] payload) {
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeInt(@NonNull byte[] target, int offset, int value) {
+
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
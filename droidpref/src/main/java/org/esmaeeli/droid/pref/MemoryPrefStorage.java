@@ -0,0 +1,85 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link PrefStorage} which only keeps values in memory, for tests and benchmarks.
+ */
+public final class MemoryPrefStorage implements PrefStorage {
+
+    private final Map<String, Object> values = new HashMap<>();
+
+    public MemoryPrefStorage() {
+    }
+
+    public MemoryPrefStorage(@NonNull Map<String, ?> values) {
+        this.values.putAll(values);
+    }
+
+    @NonNull
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(@NonNull String key, boolean defValue) {
+        Boolean value = (Boolean) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized int getInt(@NonNull String key, int defValue) {
+        Integer value = (Integer) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(@NonNull String key, long defValue) {
+        Long value = (Long) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(@NonNull String key, float defValue) {
+        Float value = (Float) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(@NonNull String key, @Nullable String defValue) {
+        String value = (String) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Set<String> getStringSet(@NonNull String key,
+                                                 @Nullable Set<String> defValue) {
+        //noinspection unchecked
+        Set<String> value = (Set<String>) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized boolean commit(@NonNull PrefChanges changes) {
+        changes.applyTo(values);
+        return true;
+    }
+
+    @Override
+    public void apply(@NonNull PrefChanges changes) {
+        commit(changes);
+    }
+}
@@ -0,0 +1,29 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A {@link PrefStorage} which may be written by several processes at once, e.g. a UI process and
+ * a service process sharing a store.
+ * <p>
+ * {@link SharedPref} compares {@link #getGeneration()} with the generation it last saw before
+ * every read, and only when it changed calls {@link #refresh()} and updates the cached keys
+ * which other processes changed, notifying their observers, instead of reloading every value.
+ */
+public interface MultiProcessPrefStorage extends PrefStorage {
+
+    /**
+     * Must be cheap, since it is called on every read of a {@link SharedPref}.
+     *
+     * @return a stamp which changes whenever any process commits to the storage.
+     */
+    long getGeneration();
+
+    /**
+     * Catches up with the commits of other processes.
+     *
+     * @return the changes other processes made since the previous call, empty if there are none.
+     */
+    @NonNull
+    PrefChanges refresh();
+}
@@ -0,0 +1,188 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * The export format of {@link SharedPref#exportTo(java.io.OutputStream)}: a magic number followed
+ * by records, each a record type byte and a key, and an end record.
+ * <p>
+ * A value record holds the value in its {@link PrefCodec} encoding, so encoded and compressed
+ * values are copied as they are. A bytes record holds a byte value, inline or in a blob file, as
+ * blocks, each its length followed by the bytes, and an empty block, so blob files are streamed
+ * without knowing their size up front. Value records never hold the references byte values are
+ * stored as, so an archive can't refer to files.
+ */
+final class PrefArchive {
+
+    static final int MAGIC = 0x44505831; // DPX1
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_VALUE = 1;
+    static final byte RECORD_BYTES = 2;
+
+    private static final int BLOCK_SIZE = 8192;
+
+    private PrefArchive() {
+    }
+
+    // region Binary
+    static void writeValue(@NonNull DataOutput out, @NonNull String key, @NonNull Object value)
+            throws IOException {
+
+        out.writeByte(RECORD_VALUE);
+        PrefCodec.writeString(out, key);
+        PrefCodec.writeValue(out, value);
+    }
+
+    /**
+     * Writes the bytes of the stream, without closing it.
+     */
+    static void writeBytes(@NonNull DataOutput out, @NonNull String key, @NonNull InputStream in)
+            throws IOException {
+
+        out.writeByte(RECORD_BYTES);
+        PrefCodec.writeString(out, key);
+        byte[] buffer = new byte[BLOCK_SIZE];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            if (count > 0) {
+                out.writeInt(count);
+                out.write(buffer, 0, count);
+            }
+        }
+        out.writeInt(0);
+    }
+
+    /**
+     * @return a stream of the blocks of a bytes record, which must be read to its end before the
+     * next record.
+     */
+    @NonNull
+    static InputStream readBytes(@NonNull DataInputStream in) {
+        return new BlockInputStream(in);
+    }
+
+    /**
+     * Reads a bytes record which is not stored, e.g. one of a skipped key.
+     */
+    static void skipBytes(@NonNull DataInputStream in) throws IOException {
+
+        InputStream blocks = readBytes(in);
+        byte[] buffer = new byte[BLOCK_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (blocks.read(buffer) >= 0) {
+        }
+    }
+
+    /**
+     * The blocks of a bytes record as one stream, which ends at the empty block.
+     */
+    private static final class BlockInputStream extends InputStream {
+
+        private final DataInput in;
+        private int remaining;
+        private boolean ended;
+
+        BlockInputStream(@NonNull DataInput in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+
+            if (length == 0) {
+                return 0;
+            }
+            if (remaining == 0 && !ended) {
+                remaining = in.readInt();
+                if (remaining < 0) {
+                    throw new IOException("Invalid block length " + remaining);
+                }
+                ended = remaining == 0;
+            }
+            if (ended) {
+                return -1;
+            }
+            int count = Math.min(length, remaining);
+            in.readFully(buffer, offset, count);
+            remaining -= count;
+            return count;
+        }
+    }
+    // endregion
+
+    // region JSON
+    static void appendJson(@NonNull Appendable out, @Nullable Object value) throws IOException {
+
+        if (value instanceof String) {
+            appendJsonString(out, (String) value);
+        } else if (value instanceof Set) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (Set<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendJson(out, element);
+            }
+            out.append(']');
+        } else if (value instanceof Float
+                && (((Float) value).isNaN() || ((Float) value).isInfinite())) {
+            // JSON has no literals for these.
+            appendJsonString(out, value.toString());
+        } else {
+            out.append(String.valueOf(value));
+        }
+    }
+
+    static void appendJsonString(@NonNull Appendable out, @NonNull String value)
+            throws IOException {
+
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(c < 0x10 ? "\\u000" : "\\u00").append(Integer.toHexString(c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+    // endregion
+}
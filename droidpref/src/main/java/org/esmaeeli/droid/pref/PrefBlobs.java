@@ -0,0 +1,384 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The byte values of a {@link SharedPref}. A byte value is stored as a String reference, either
+ * holding the bytes inline as Base64, or naming a blob file in the blob directory of the store
+ * which holds the bytes as they are. References start with a reserved character, so they can't be
+ * mistaken for plain String values.
+ * <p>
+ * Blob files are never overwritten: every write creates a file with a new name, written to a
+ * temporary file first and renamed once synced, and the reference to it is committed afterwards.
+ * Blob files are mapped read-only, the mappings are shared between readers and stay valid after
+ * the file is replaced and deleted.
+ */
+final class PrefBlobs {
+
+    /**
+     * The first character of every reference, the noncharacter U+FDD0, which plain String values
+     * may not start with, see {@link #checkString(String)}. Unlike U+0000 or U+FFFF it is valid
+     * in the XML files of {@link android.content.SharedPreferences}.
+     */
+    static final char REFERENCE_MARKER = '\uFDD0';
+
+    private static final String INLINE_PREFIX = REFERENCE_MARKER + "b64:";
+    private static final String BLOB_PREFIX = REFERENCE_MARKER + "blob:";
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The longest reference, a longer String can't be a reference.
+     */
+    private static final int MAX_REFERENCE_LENGTH = 64;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final File directory;
+    private final ConcurrentMap<String, ByteBuffer> mapped = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory the blob directory, or null to store all byte values inline.
+     */
+    PrefBlobs(@Nullable File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return whether large values are stored in blob files, rather than all of them inline.
+     */
+    boolean hasDirectory() {
+        return directory != null;
+    }
+
+    // region References
+    /**
+     * Stores the bytes inline if they are no larger than the given limit or there is no blob
+     * directory, in a new blob file otherwise.
+     *
+     * @return the reference to store.
+     */
+    @NonNull
+    String store(@NonNull byte[] value, int inlineLimit) throws IOException {
+
+        if (directory == null || value.length <= inlineLimit) {
+            return INLINE_PREFIX + encodeBase64(value);
+        }
+        return write(new ByteArrayInputStream(value));
+    }
+
+    /**
+     * Stores the bytes of the stream in a new blob file, or inline if there is no blob directory,
+     * without closing the stream.
+     *
+     * @return the reference to store.
+     */
+    @NonNull
+    String store(@NonNull InputStream in) throws IOException {
+
+        if (directory != null) {
+            return write(in);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(in, out);
+        return INLINE_PREFIX + encodeBase64(out.toByteArray());
+    }
+
+    /**
+     * @throws IllegalArgumentException if a plain String value starts like a reference.
+     */
+    static void checkString(@Nullable String value) {
+
+        if (isReference(value)) {
+            throw new IllegalArgumentException(
+                    "Strings starting with U+FDD0 are reserved for byte values");
+        }
+    }
+
+    /**
+     * @return whether the String starts like a reference.
+     */
+    static boolean isReference(@Nullable String value) {
+        return value != null && !value.isEmpty() && value.charAt(0) == REFERENCE_MARKER;
+    }
+
+    private static boolean isBlob(@Nullable String reference) {
+        return reference != null && reference.startsWith(BLOB_PREFIX)
+                && isBlobName(reference.substring(BLOB_PREFIX.length()));
+    }
+
+    /**
+     * @return whether the name is one {@link #write(InputStream)} creates, a random UUID and the
+     * blob suffix, so a damaged or crafted reference never names a file outside the directory.
+     */
+    private static boolean isBlobName(@NonNull String name) {
+
+        int uuidLength = 36;
+        if (name.length() != uuidLength + BLOB_SUFFIX.length() || !name.endsWith(BLOB_SUFFIX)) {
+            return false;
+        }
+        for (int i = 0; i < uuidLength; i++) {
+            char c = name.charAt(i);
+            boolean valid = i == 8 || i == 13 || i == 18 || i == 23
+                    ? c == '-' : c >= '0' && c <= '9' || c >= 'a' && c <= 'f';
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the value, which may be encoded, is a byte value, inline or in a blob file.
+     */
+    static boolean isBytes(@NonNull Object value) {
+
+        if (value instanceof EncodedValue) {
+            return ((EncodedValue) value).startsWith(String.valueOf(REFERENCE_MARKER));
+        }
+        return value instanceof String && isReference((String) value);
+    }
+
+    /**
+     * @return whether the value, which may be encoded, refers to a blob file. Encoded values which
+     * are no Strings or too long to be a reference are rejected without decoding them.
+     */
+    static boolean isBlob(@NonNull Object value) {
+
+        if (value instanceof EncodedValue
+                && (((EncodedValue) value).getType() != PrefCache.TYPE_STRING
+                || ((EncodedValue) value).getLength() > MAX_REFERENCE_LENGTH)) {
+            return false;
+        }
+        Object decoded = EncodedValue.decode(value);
+        return decoded instanceof String && isBlob((String) decoded);
+    }
+
+    /**
+     * @return a read-only buffer of the referenced bytes, or null if the blob file is missing.
+     * @throws ClassCastException if the reference is not a byte value.
+     */
+    @Nullable
+    ByteBuffer read(@NonNull String key, @NonNull String reference) throws IOException {
+
+        if (reference.startsWith(INLINE_PREFIX)) {
+            return ByteBuffer.wrap(decodeBase64(reference, INLINE_PREFIX.length()))
+                    .asReadOnlyBuffer();
+        }
+        String name = blobName(key, reference);
+        ByteBuffer buffer = mapped.get(name);
+        if (buffer == null) {
+            RandomAccessFile file;
+            try {
+                file = new RandomAccessFile(new File(directory, name), "r");
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            try {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+            ByteBuffer raced = mapped.putIfAbsent(name, buffer);
+            if (raced != null) {
+                buffer = raced;
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * @return a stream of the referenced bytes, or null if the blob file is missing.
+     * @throws ClassCastException if the reference is not a byte value.
+     */
+    @Nullable
+    InputStream open(@NonNull String key, @NonNull String reference) {
+
+        if (reference.startsWith(INLINE_PREFIX)) {
+            return new ByteArrayInputStream(decodeBase64(reference, INLINE_PREFIX.length()));
+        }
+        try {
+            return new FileInputStream(new File(directory, blobName(key, reference)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private static String blobName(@NonNull String key, @NonNull String reference) {
+
+        if (!reference.startsWith(BLOB_PREFIX)) {
+            throw new ClassCastException("Key \"" + key + "\" holds a String, not bytes");
+        }
+        String name = reference.substring(BLOB_PREFIX.length());
+        if (!isBlobName(name)) {
+            throw new IllegalStateException("Damaged byte value of \"" + key + "\"");
+        }
+        return name;
+    }
+    // endregion
+
+    // region Blob files
+    /**
+     * Copies the stream to a new blob file.
+     *
+     * @return the reference to the blob.
+     */
+    @NonNull
+    private String write(@NonNull InputStream in) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        String name = UUID.randomUUID() + BLOB_SUFFIX;
+        File temp = new File(directory, name + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        boolean written = false;
+        try {
+            copy(in, out);
+            out.getFD().sync();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+        if (!temp.renameTo(new File(directory, name))) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Failed to rename " + temp);
+        }
+        return BLOB_PREFIX + name;
+    }
+
+    /**
+     * Deletes the blob file of a reference which is no longer stored.
+     */
+    void delete(@Nullable String reference) {
+
+        if (isBlob(reference)) {
+            String name = reference.substring(BLOB_PREFIX.length());
+            mapped.remove(name);
+            //noinspection ResultOfMethodCallIgnored
+            new File(directory, name).delete();
+        }
+    }
+
+    /**
+     * Deletes the blob files, and leftover temporary files, which none of the values refer to.
+     * Must be called while no byte value is being written.
+     */
+    void deleteUnreferenced(@NonNull Map<String, ?> values) {
+
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Set<String> references = new HashSet<>();
+        for (Object value : values.values()) {
+            if (value != null && isBlob(value)) {
+                references.add((String) EncodedValue.decode(value));
+            }
+        }
+        for (File file : files) {
+            if (!references.contains(BLOB_PREFIX + file.getName())) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static void copy(@NonNull InputStream in, @NonNull OutputStream out)
+            throws IOException {
+
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+    }
+    // endregion
+
+    // region Base64
+    @NonNull
+    static String encodeBase64(@NonNull byte[] bytes) {
+
+        StringBuilder out = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int remaining = bytes.length - i;
+            int chunk = (bytes[i] & 0xFF) << 16;
+            if (remaining > 1) {
+                chunk |= (bytes[i + 1] & 0xFF) << 8;
+            }
+            if (remaining > 2) {
+                chunk |= bytes[i + 2] & 0xFF;
+            }
+            out.append(BASE64[chunk >>> 18]).append(BASE64[(chunk >>> 12) & 63]);
+            out.append(remaining > 1 ? BASE64[(chunk >>> 6) & 63] : '=');
+            out.append(remaining > 2 ? BASE64[chunk & 63] : '=');
+        }
+        return out.toString();
+    }
+
+    @NonNull
+    static byte[] decodeBase64(@NonNull String text, int offset) {
+
+        int length = text.length() - offset;
+        int padding = length > 0 && text.charAt(text.length() - 1) == '='
+                ? (text.charAt(text.length() - 2) == '=' ? 2 : 1) : 0;
+        byte[] bytes = new byte[length / 4 * 3 - padding];
+        int position = 0;
+        for (int i = offset; i < text.length(); i += 4) {
+            int chunk = 0;
+            for (int j = 0; j < 4; j++) {
+                chunk = (chunk << 6) | valueOf(text.charAt(i + j));
+            }
+            for (int shift = 16; shift >= 0 && position < bytes.length; shift -= 8) {
+                bytes[position++] = (byte) (chunk >>> shift);
+            }
+        }
+        return bytes;
+    }
+
+    private static int valueOf(char c) {
+
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        } else if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        } else if (c == '+') {
+            return 62;
+        } else if (c == '/') {
+            return 63;
+        } else if (c == '=') {
+            return 0;
+        }
+        throw new IllegalArgumentException("Invalid Base64 character " + c);
+    }
+    // endregion
+}
@@ -0,0 +1,681 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Primitive-specialized value cache used by {@link SharedPref}.
+ * <p>
+ * The key layout (which keys exist, their types and their slots) is immutable and is replaced as a
+ * whole when a key is added or removed or changes its type. Values live in typed slot arrays, so
+ * ints, floats, longs and booleans are stored without wrapper objects and an existing slot can be
+ * overwritten in place without allocating. Slot arrays are atomic arrays, which makes in-place
+ * writes visible to lock-free readers.
+ * <p>
+ * Keys are kept in an open addressing table with linear probing, indexed by position. Positions
+ * returned by {@link #indexOf(String)} are only valid for the instance that returned them.
+ * <p>
+ * Large String and Set values can be evicted, see {@link #evict(long)}, which replaces them with a
+ * placeholder of their type so the key stays in the layout. Getters return null for evicted values
+ * and the caller reloads them, see {@link #restore(int, Object)}.
+ * <p>
+ * String and Set values may also be cached as {@link EncodedValue}s, which getters decode on first
+ * access and replace with the decoded value. Copies keep them encoded.
+ * <p>
+ * In-place writes are counted before and after they write, which lets readers of several values
+ * check that no write overlapped their reads, see {@link #beginRead()}.
+ */
+final class PrefCache {
+
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_STRING = 5;
+    static final byte TYPE_STRING_SET = 6;
+
+    /**
+     * Placeholders of evicted values, compared by identity.
+     */
+    @SuppressWarnings("RedundantStringConstructorCall")
+    private static final String EVICTED_STRING = new String("");
+    private static final Set<String> EVICTED_STRING_SET =
+            Collections.unmodifiableSet(new HashSet<String>());
+
+    /**
+     * Rough heap footprints used to weigh values, in bytes.
+     */
+    private static final long STRING_WEIGHT = 40;
+    private static final long SET_WEIGHT = 48;
+    private static final long SET_ENTRY_WEIGHT = 32;
+    private static final long ENCODED_WEIGHT = 32;
+
+    /**
+     * Values lighter than this are never evicted, since reloading them would cost more than
+     * keeping them.
+     */
+    static final long PINNED_WEIGHT = 256;
+
+    static final PrefCache EMPTY = new PrefCache(new LinkedHashMap<String, Object>());
+
+    private final String[] keys;
+    private final byte[] types;
+    private final int[] slots;
+    private final int size;
+
+    /**
+     * Int and float slots, floats are stored as their raw int bits.
+     */
+    private final AtomicIntegerArray ints;
+    private final AtomicLongArray longs;
+
+    /**
+     * Boolean slots packed 32 per element.
+     */
+    private final AtomicIntegerArray bits;
+    private final AtomicReferenceArray<Object> refs;
+
+    /**
+     * Eviction state: the weight of the cached String and Set values, a flag per ref slot which is
+     * set when the value is read, and the clock hand of {@link #evict(long)}.
+     */
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicIntegerArray referenced;
+    private int hand;
+
+    /**
+     * The number of in-place writes which started and finished, see {@link #beginRead()}.
+     */
+    private final AtomicLong writesStarted = new AtomicLong();
+    private final AtomicLong writesFinished = new AtomicLong();
+
+    private PrefCache(@NonNull Map<String, ?> values) {
+
+        int capacity = 2;
+        while (capacity < values.size() * 2) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        types = new byte[capacity];
+        slots = new int[capacity];
+
+        int intCount = 0, longCount = 0, bitCount = 0, refCount = 0;
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            byte type = typeOf(entry.getValue());
+            int index = probe(entry.getKey());
+            keys[index] = entry.getKey();
+            types[index] = type;
+            switch (type) {
+                case TYPE_INT:
+                case TYPE_FLOAT:
+                    slots[index] = intCount++;
+                    break;
+                case TYPE_LONG:
+                    slots[index] = longCount++;
+                    break;
+                case TYPE_BOOLEAN:
+                    slots[index] = bitCount++;
+                    break;
+                default:
+                    slots[index] = refCount++;
+                    break;
+            }
+        }
+        size = values.size();
+
+        ints = new AtomicIntegerArray(intCount);
+        longs = new AtomicLongArray(longCount);
+        bits = new AtomicIntegerArray((bitCount + 31) >>> 5);
+        refs = new AtomicReferenceArray<>(refCount);
+        referenced = new AtomicIntegerArray(refCount);
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            store(indexOf(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /**
+     * Creates a cache holding the given values. Null values are skipped, as they are not stored
+     * by {@link android.content.SharedPreferences} either.
+     */
+    @NonNull
+    static PrefCache of(@NonNull Map<String, ?> values) {
+
+        Map<String, Object> copy = new LinkedHashMap<>(values.size());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy.isEmpty() ? EMPTY : new PrefCache(copy);
+    }
+
+    // region Layout
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of positions, positions range from 0 (inclusive) to capacity (exclusive)
+     * and {@link #keyAt(int)} returns null for empty positions.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    @Nullable
+    String keyAt(int index) {
+        return keys[index];
+    }
+
+    byte typeAt(int index) {
+        return types[index];
+    }
+
+    /**
+     * @return the position of the key or -1 if the key is not cached.
+     */
+    int indexOf(@NonNull String key) {
+
+        int mask = keys.length - 1;
+        int index = spread(key.hashCode()) & mask;
+        String candidate;
+        while ((candidate = keys[index]) != null) {
+            //noinspection StringEquality
+            if (candidate == key || candidate.equals(key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int probe(@NonNull String key) {
+
+        int mask = keys.length - 1;
+        int index = spread(key.hashCode()) & mask;
+        while (keys[index] != null) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+    // endregion
+
+    // region Get
+    boolean getBoolean(int index) {
+        check(index, TYPE_BOOLEAN);
+        int slot = slots[index];
+        return (bits.get(slot >>> 5) & (1 << slot)) != 0;
+    }
+
+    int getInt(int index) {
+        check(index, TYPE_INT);
+        return ints.get(slots[index]);
+    }
+
+    long getLong(int index) {
+        check(index, TYPE_LONG);
+        return longs.get(slots[index]);
+    }
+
+    float getFloat(int index) {
+        check(index, TYPE_FLOAT);
+        return Float.intBitsToFloat(ints.get(slots[index]));
+    }
+
+    /**
+     * @return the value, or null if it was evicted.
+     */
+    @Nullable
+    String getString(int index) {
+        check(index, TYPE_STRING);
+        return (String) present(slots[index]);
+    }
+
+    /**
+     * @return the value, or null if it was evicted.
+     */
+    @Nullable
+    Set<String> getStringSet(int index) {
+        check(index, TYPE_STRING_SET);
+        //noinspection unchecked
+        return (Set<String>) present(slots[index]);
+    }
+
+    /**
+     * @return the String or Set value at the given position, or null if it was evicted.
+     */
+    @Nullable
+    Object getRef(int index) {
+        return present(slots[index]);
+    }
+
+    /**
+     * Boxed access to any value, for paths which are not performance sensitive. Returns the
+     * placeholder of an evicted value and encoded values as they are, which copies keep, see
+     * {@link #isEvicted(Object)}.
+     */
+    @NonNull
+    Object get(int index) {
+
+        int slot = slots[index];
+        switch (types[index]) {
+            case TYPE_BOOLEAN:
+                return (bits.get(slot >>> 5) & (1 << slot)) != 0;
+            case TYPE_INT:
+                return ints.get(slot);
+            case TYPE_LONG:
+                return longs.get(slot);
+            case TYPE_FLOAT:
+                return Float.intBitsToFloat(ints.get(slot));
+            default:
+                return refs.get(slot);
+        }
+    }
+
+    /**
+     * Like {@link #get(int)}, but returns null for an evicted value.
+     */
+    @Nullable
+    Object getStored(int index) {
+
+        Object value = get(index);
+        return isEvicted(value) ? null : value;
+    }
+
+    private void check(int index, byte type) {
+
+        if (types[index] != type) {
+            throw new ClassCastException("Key \"" + keys[index] + "\" holds a "
+                    + typeName(types[index]) + ", not a " + typeName(type));
+        }
+    }
+    // endregion
+
+    // region Slot access
+    /*
+     * Slots index the typed value arrays. A slot stays valid for as long as this instance is the
+     * published cache, in-place writes keep it and layout changes publish a new instance.
+     */
+
+    /**
+     * @return the slot of the value at the given position.
+     * @throws ClassCastException if the value is not of the given type.
+     */
+    int slotOf(int index, byte type) {
+        check(index, type);
+        return slots[index];
+    }
+
+    boolean readBoolean(int slot) {
+        return (bits.get(slot >>> 5) & (1 << slot)) != 0;
+    }
+
+    int readInt(int slot) {
+        return ints.get(slot);
+    }
+
+    long readLong(int slot) {
+        return longs.get(slot);
+    }
+
+    float readFloat(int slot) {
+        return Float.intBitsToFloat(ints.get(slot));
+    }
+
+    /**
+     * @return the value, or null if it was evicted.
+     */
+    @Nullable
+    Object readRef(int slot) {
+        return present(slot);
+    }
+    // endregion
+
+    // region In-place put
+    /*
+     * The set methods overwrite the slot of an existing key of the same type and return false if
+     * the layout has to change instead, in which case the caller publishes the result of
+     * with(String, Object). Callers must serialize writers of the same key. Each write is counted
+     * before and after it, see beginRead().
+     */
+
+    boolean setBoolean(@NonNull String key, boolean value) {
+
+        int index = indexOf(key);
+        if (index < 0 || types[index] != TYPE_BOOLEAN) {
+            return false;
+        }
+        writesStarted.incrementAndGet();
+        storeBit(slots[index], value);
+        writesFinished.incrementAndGet();
+        return true;
+    }
+
+    boolean setInt(@NonNull String key, int value) {
+
+        int index = indexOf(key);
+        if (index < 0 || types[index] != TYPE_INT) {
+            return false;
+        }
+        writesStarted.incrementAndGet();
+        ints.set(slots[index], value);
+        writesFinished.incrementAndGet();
+        return true;
+    }
+
+    boolean setLong(@NonNull String key, long value) {
+
+        int index = indexOf(key);
+        if (index < 0 || types[index] != TYPE_LONG) {
+            return false;
+        }
+        writesStarted.incrementAndGet();
+        longs.set(slots[index], value);
+        writesFinished.incrementAndGet();
+        return true;
+    }
+
+    boolean setFloat(@NonNull String key, float value) {
+
+        int index = indexOf(key);
+        if (index < 0 || types[index] != TYPE_FLOAT) {
+            return false;
+        }
+        writesStarted.incrementAndGet();
+        ints.set(slots[index], Float.floatToRawIntBits(value));
+        writesFinished.incrementAndGet();
+        return true;
+    }
+
+    private boolean setRef(@NonNull String key, @Nullable Object value) {
+
+        int index = indexOf(key);
+        if (value == null || index < 0 || types[index] != typeOf(value)) {
+            return false;
+        }
+        writesStarted.incrementAndGet();
+        int slot = slots[index];
+        weight.addAndGet(weigh(value) - weigh(refs.getAndSet(slot, value)));
+        writesFinished.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Boxed variant of the set methods, dispatching on the type of the value, for writers which
+     * don't know it statically.
+     */
+    boolean set(@NonNull String key, @Nullable Object value) {
+
+        if (value instanceof Boolean) {
+            return setBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            return setInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            return setLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            return setFloat(key, (Float) value);
+        }
+        return setRef(key, value);
+    }
+
+    /**
+     * Starts an optimistic read of several values, which saw a consistent state if
+     * {@link #validate(long)} returns true afterwards. Eviction, restoring and decoding values
+     * don't change what readers see and don't count as writes.
+     *
+     * @return the stamp to validate the read with, or -1 if a write is in progress.
+     */
+    long beginRead() {
+
+        // Finished is read first: finished never exceeds started, so equal counts mean that no
+        // write was in progress in between.
+        long finished = writesFinished.get();
+        return writesStarted.get() == finished ? finished : -1;
+    }
+
+    /**
+     * @return whether no in-place write started since {@link #beginRead()} returned the stamp.
+     */
+    boolean validate(long stamp) {
+        return writesStarted.get() == stamp;
+    }
+
+    private void store(int index, @NonNull Object value) {
+
+        int slot = slots[index];
+        switch (types[index]) {
+            case TYPE_BOOLEAN:
+                storeBit(slot, (Boolean) value);
+                break;
+            case TYPE_INT:
+                ints.set(slot, (Integer) value);
+                break;
+            case TYPE_LONG:
+                longs.set(slot, (Long) value);
+                break;
+            case TYPE_FLOAT:
+                ints.set(slot, Float.floatToRawIntBits((Float) value));
+                break;
+            default:
+                refs.set(slot, value);
+                weight.addAndGet(weigh(value));
+                break;
+        }
+    }
+
+    private void storeBit(int slot, boolean value) {
+
+        int word = slot >>> 5;
+        int mask = 1 << slot;
+        int current;
+        do {
+            current = bits.get(word);
+        } while (!bits.compareAndSet(word, current, value ? current | mask : current & ~mask));
+    }
+    // endregion
+
+    // region Eviction
+    /*
+     * Readers mark ref slots through touch(int) and touchRef(int) when the store is bounded.
+     * evict(long) and restore(int, Object) must be called while holding the lock of the store and
+     * all its stripes.
+     */
+
+    /**
+     * @return the estimated weight of the String and Set values which are not evicted.
+     */
+    long weight() {
+        return weight.get();
+    }
+
+    void touch(int index) {
+        touchRef(slots[index]);
+    }
+
+    void touchRef(int slot) {
+
+        if (referenced.get(slot) == 0) {
+            referenced.lazySet(slot, 1);
+        }
+    }
+
+    /**
+     * Evicts values which are not pinned until the weight drops to the limit, using the clock
+     * algorithm: the hand sweeps the ref slots, clears the flag of values which were read since it
+     * last passed them and evicts the others.
+     *
+     * @return the number of evicted values.
+     */
+    int evict(long limit) {
+
+        int count = refs.length();
+        int evicted = 0;
+        for (int scanned = 0; weight.get() > limit && scanned < 2 * count; scanned++) {
+            int slot = hand;
+            hand = (hand + 1) % count;
+            Object value = refs.get(slot);
+            long valueWeight = weigh(value);
+            if (valueWeight < PINNED_WEIGHT) {
+                continue;
+            }
+            if (referenced.get(slot) != 0) {
+                referenced.set(slot, 0);
+                continue;
+            }
+            Object placeholder = typeOf(value) == TYPE_STRING ? EVICTED_STRING : EVICTED_STRING_SET;
+            if (refs.compareAndSet(slot, value, placeholder)) {
+                weight.addAndGet(-valueWeight);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Puts a reloaded value back in place of the placeholder at the given position.
+     */
+    void restore(int index, @NonNull Object value) {
+
+        int slot = slots[index];
+        Object current = refs.get(slot);
+        if (isEvicted(current) && refs.compareAndSet(slot, current, value)) {
+            weight.addAndGet(weigh(value));
+            referenced.set(slot, 1);
+        }
+    }
+
+    private static boolean isEvicted(@Nullable Object value) {
+        return value == EVICTED_STRING || value == EVICTED_STRING_SET;
+    }
+
+    /**
+     * @return the value in the ref slot, decoded and memoized if it was encoded, or null if it was
+     * evicted.
+     */
+    @Nullable
+    private Object present(int slot) {
+
+        Object value = refs.get(slot);
+        if (value instanceof EncodedValue) {
+            Object decoded = ((EncodedValue) value).decode();
+            if (refs.compareAndSet(slot, value, decoded)) {
+                weight.addAndGet(weigh(decoded) - weigh(value));
+            }
+            return decoded;
+        }
+        return isEvicted(value) ? null : value;
+    }
+
+    private static long weigh(@Nullable Object value) {
+
+        if (value instanceof EncodedValue) {
+            return ENCODED_WEIGHT + ((EncodedValue) value).getLength();
+        }
+        if (value instanceof String) {
+            return value == EVICTED_STRING ? 0 : STRING_WEIGHT + 2L * ((String) value).length();
+        }
+        if (value instanceof Set && value != EVICTED_STRING_SET) {
+            long weight = SET_WEIGHT;
+            for (Object element : (Set<?>) value) {
+                weight += SET_ENTRY_WEIGHT;
+                if (element != null) {
+                    weight += STRING_WEIGHT + 2L * ((String) element).length();
+                }
+            }
+            return weight;
+        }
+        return 0;
+    }
+    // endregion
+
+    // region Copy-on-write
+    /**
+     * @return a new cache holding this cache's values plus the given entry, or without the key if
+     * value is null.
+     */
+    @NonNull
+    PrefCache with(@NonNull String key, @Nullable Object value) {
+
+        Map<String, Object> values = toMap();
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+        }
+        return of(values);
+    }
+
+    @NonNull
+    PrefCache without(@NonNull String key) {
+        return indexOf(key) < 0 ? this : with(key, null);
+    }
+
+    /**
+     * @return a boxed, mutable copy of the current values.
+     */
+    @NonNull
+    Map<String, Object> toMap() {
+
+        Map<String, Object> values = new LinkedHashMap<>(size * 2);
+        for (int index = 0; index < keys.length; index++) {
+            if (keys[index] != null) {
+                values.put(keys[index], get(index));
+            }
+        }
+        return values;
+    }
+    // endregion
+
+    static byte typeOf(@NonNull Object value) {
+
+        if (value instanceof EncodedValue) {
+            return ((EncodedValue) value).getType();
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Set) {
+            return TYPE_STRING_SET;
+        }
+        throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+    }
+
+    @NonNull
+    private static String typeName(byte type) {
+
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return "boolean";
+            case TYPE_INT:
+                return "int";
+            case TYPE_LONG:
+                return "long";
+            case TYPE_FLOAT:
+                return "float";
+            case TYPE_STRING:
+                return "String";
+            default:
+                return "Set<String>";
+        }
+    }
+}
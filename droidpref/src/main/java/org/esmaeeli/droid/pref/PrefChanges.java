@@ -0,0 +1,97 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A set of pending puts and removes which are written with a single commit.
+ * <p>
+ * Operations take effect in the order they are recorded, so a clear only drops the changes
+ * recorded before it. A null value stands for a removal, the same as passing null to
+ * {@link android.content.SharedPreferences.Editor#putString(String, String)}.
+ */
+public final class PrefChanges {
+
+    private final Map<String, Object> values = new LinkedHashMap<>();
+    private boolean clear;
+
+    void put(@NonNull String key, @Nullable Object value) {
+        values.put(key, value);
+    }
+
+    void remove(@NonNull String key) {
+        values.put(key, null);
+    }
+
+    void clear() {
+        values.clear();
+        clear = true;
+    }
+
+    /**
+     * Appends the given changes, as if they were recorded after the changes of this set.
+     */
+    void merge(@NonNull PrefChanges other) {
+
+        if (other.clear) {
+            clear();
+        }
+        values.putAll(other.values);
+    }
+
+    /**
+     * @return whether all stored values are removed before the changes of {@link #getValues()}
+     * are written.
+     */
+    public boolean isClear() {
+        return clear;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public boolean isEmpty() {
+        return !clear && values.isEmpty();
+    }
+
+    /**
+     * @return the changed keys mapped to their new values, null values are removals.
+     */
+    @NonNull
+    public Map<String, Object> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Applies these changes to a mutable map of values.
+     */
+    void applyTo(@NonNull Map<String, Object> target) {
+
+        if (clear) {
+            target.clear();
+        }
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                target.remove(entry.getKey());
+            } else {
+                target.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return a new cache holding the given cache's values with these changes applied.
+     */
+    @NonNull
+    PrefCache applyTo(@NonNull PrefCache cache) {
+
+        Map<String, Object> next = clear ? new LinkedHashMap<String, Object>() : cache.toMap();
+        next.putAll(values);
+        return PrefCache.of(next);
+    }
+}
@@ -0,0 +1,198 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * The typed binary encoding of values shared by the file based storages. A value is written as
+ * its {@link PrefCache} type byte followed by the value, strings as their UTF-8 length and bytes
+ * and string sets as their size followed by the strings.
+ * <p>
+ * An {@link EncodedValue} is written as its encoded bytes. With a {@link PrefCompression}, large
+ * Strings are written as {@link #TYPE_DEFLATED_STRING} followed by their UTF-8 length and their
+ * deflated bytes.
+ */
+final class PrefCodec {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The type byte of a deflated String, which only exists in the encoding and reads as a
+     * {@link PrefCache#TYPE_STRING}.
+     */
+    static final byte TYPE_DEFLATED_STRING = 7;
+
+    private PrefCodec() {
+    }
+
+    static void writeValue(@NonNull DataOutput out, @NonNull Object value) throws IOException {
+        writeValue(out, value, null);
+    }
+
+    /**
+     * @param compression the compression of large Strings, or null to write them as they are.
+     */
+    static void writeValue(@NonNull DataOutput out, @NonNull Object value,
+                           @Nullable PrefCompression compression) throws IOException {
+
+        if (value instanceof EncodedValue) {
+            ((EncodedValue) value).writeTo(out);
+            return;
+        }
+        byte type = PrefCache.typeOf(value);
+        if (type == PrefCache.TYPE_STRING && compression != null) {
+            byte[] bytes = ((String) value).getBytes(UTF_8);
+            byte[] compressed = compression.compress(bytes);
+            if (compressed != null) {
+                out.writeByte(TYPE_DEFLATED_STRING);
+                out.writeInt(bytes.length);
+                out.writeInt(compressed.length);
+                out.write(compressed);
+            } else {
+                out.writeByte(type);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            return;
+        }
+        out.writeByte(type);
+        switch (type) {
+            case PrefCache.TYPE_BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case PrefCache.TYPE_INT:
+                out.writeInt((Integer) value);
+                break;
+            case PrefCache.TYPE_LONG:
+                out.writeLong((Long) value);
+                break;
+            case PrefCache.TYPE_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case PrefCache.TYPE_STRING:
+                writeString(out, (String) value);
+                break;
+            default:
+                //noinspection unchecked
+                Set<String> set = (Set<String>) value;
+                out.writeInt(set.size());
+                for (String element : set) {
+                    writeString(out, element);
+                }
+                break;
+        }
+    }
+
+    @NonNull
+    static Object readValue(@NonNull DataInput in) throws IOException {
+        return readValue(in, in.readByte());
+    }
+
+    @NonNull
+    private static Object readValue(@NonNull DataInput in, byte type) throws IOException {
+
+        switch (type) {
+            case PrefCache.TYPE_BOOLEAN:
+                return in.readBoolean();
+            case PrefCache.TYPE_INT:
+                return in.readInt();
+            case PrefCache.TYPE_LONG:
+                return in.readLong();
+            case PrefCache.TYPE_FLOAT:
+                return in.readFloat();
+            case PrefCache.TYPE_STRING:
+                return readString(in);
+            case TYPE_DEFLATED_STRING:
+                return readDeflatedString(in);
+            case PrefCache.TYPE_STRING_SET:
+                int size = in.readInt();
+                Set<String> set = new HashSet<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(in));
+                }
+                return set;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    /**
+     * Reads a value like {@link #readValue(DataInput)}, except that Strings, deflated or not, and
+     * string sets are skipped and returned as an {@link EncodedValue} of the buffer.
+     *
+     * @param in a stream reading the buffer from its start.
+     */
+    @NonNull
+    static Object readEncodedValue(@NonNull byte[] buffer, @NonNull DataInputStream in)
+            throws IOException {
+
+        int start = buffer.length - in.available();
+        byte type = in.readByte();
+        switch (type) {
+            case PrefCache.TYPE_STRING:
+                skipString(in);
+                break;
+            case TYPE_DEFLATED_STRING:
+                in.readInt();
+                skipString(in);
+                break;
+            case PrefCache.TYPE_STRING_SET:
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    skipString(in);
+                }
+                break;
+            default:
+                return readValue(in, type);
+        }
+        int end = buffer.length - in.available();
+        return new EncodedValue(buffer, start, end - start,
+                type == TYPE_DEFLATED_STRING ? PrefCache.TYPE_STRING : type);
+    }
+
+    private static void skipString(@NonNull DataInputStream in) throws IOException {
+
+        int length = in.readInt();
+        if (in.skipBytes(length) != length) {
+            throw new EOFException();
+        }
+    }
+
+    static void writeString(@NonNull DataOutput out, @NonNull String value) throws IOException {
+
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    static String readString(@NonNull DataInput in) throws IOException {
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @NonNull
+    private static String readDeflatedString(@NonNull DataInput in) throws IOException {
+
+        int length = in.readInt();
+        byte[] compressed = new byte[in.readInt()];
+        in.readFully(compressed);
+        try {
+            return new String(PrefCompression.decompress(compressed, length), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged compressed value", e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of large String values by the file based storages, e.g.
+ * {@code new FilePrefStorage(file, PrefCompression.fast(1024))}.
+ * <p>
+ * Strings whose UTF-8 encoding reaches the threshold are deflated when written, unless that
+ * doesn't make them smaller. Compressed values are recognized by their type byte when read, so a
+ * storage reads files written with any compression, or none, and values written back without
+ * being read keep their compressed bytes. Decompression happens when the value is first read,
+ * and the decompressed String is cached from then on. The bytes saved and the time spent are
+ * reported by {@link PrefMetrics#compression()}.
+ */
+public final class PrefCompression {
+
+    /**
+     * The number of idle deflaters and inflaters kept for reuse, those released beyond it are
+     * ended, which frees their native memory right away.
+     */
+    private static final int POOL_SIZE = 4;
+
+    private static final Inflater[] INFLATERS = new Inflater[POOL_SIZE];
+    private static int idleInflaters;
+
+    private final int thresholdBytes;
+    private final int level;
+    private final Deflater[] deflaters = new Deflater[POOL_SIZE];
+    private int idleDeflaters;
+
+    private PrefCompression(int thresholdBytes, int level) {
+
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("Negative threshold " + thresholdBytes);
+        }
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+                && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid level " + level);
+        }
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+    }
+
+    /**
+     * Compresses Strings of at least the given UTF-8 size with {@link Deflater#BEST_SPEED}, which
+     * keeps commits and first reads fast at a lower ratio.
+     */
+    @NonNull
+    public static PrefCompression fast(int thresholdBytes) {
+        return new PrefCompression(thresholdBytes, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Compresses Strings of at least the given UTF-8 size with the given {@link Deflater} level.
+     */
+    @NonNull
+    public static PrefCompression of(int thresholdBytes, int level) {
+        return new PrefCompression(thresholdBytes, level);
+    }
+
+    public int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the deflated bytes, or null if the value is below the threshold or doesn't shrink.
+     */
+    @Nullable
+    byte[] compress(@NonNull byte[] value) {
+
+        if (value.length < thresholdBytes || value.length == 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = obtainDeflater();
+        byte[] compressed = null;
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            // Output which doesn't fit in the input size isn't worth keeping.
+            byte[] buffer = new byte[value.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (deflater.finished() && length < value.length) {
+                compressed = new byte[length];
+                System.arraycopy(buffer, 0, compressed, 0, length);
+            }
+
+        } finally {
+            release(deflater);
+        }
+        PrefMetrics.recordCompression(value.length,
+                compressed != null ? compressed.length : value.length, System.nanoTime() - start);
+        return compressed;
+    }
+
+    /**
+     * @param length the length of the inflated bytes.
+     */
+    @NonNull
+    static byte[] decompress(@NonNull byte[] compressed, int length) throws DataFormatException {
+
+        long start = System.nanoTime();
+        Inflater inflater = obtainInflater();
+        byte[] value = new byte[length];
+        int inflated = 0;
+        try {
+            inflater.setInput(compressed);
+            while (inflated < length) {
+                int count = inflater.inflate(value, inflated, length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+
+        } finally {
+            release(inflater);
+        }
+        if (inflated != length) {
+            throw new DataFormatException("Expected " + length + " bytes, inflated " + inflated);
+        }
+        PrefMetrics.recordDecompression(System.nanoTime() - start);
+        return value;
+    }
+
+    // region Pools
+    @NonNull
+    private Deflater obtainDeflater() {
+
+        synchronized (deflaters) {
+            if (idleDeflaters > 0) {
+                Deflater deflater = deflaters[--idleDeflaters];
+                deflaters[idleDeflaters] = null;
+                return deflater;
+            }
+        }
+        return new Deflater(level);
+    }
+
+    private void release(@NonNull Deflater deflater) {
+
+        deflater.reset();
+        synchronized (deflaters) {
+            if (idleDeflaters < POOL_SIZE) {
+                deflaters[idleDeflaters++] = deflater;
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    @NonNull
+    private static Inflater obtainInflater() {
+
+        synchronized (INFLATERS) {
+            if (idleInflaters > 0) {
+                Inflater inflater = INFLATERS[--idleInflaters];
+                INFLATERS[idleInflaters] = null;
+                return inflater;
+            }
+        }
+        return new Inflater();
+    }
+
+    private static void release(@NonNull Inflater inflater) {
+
+        inflater.reset();
+        synchronized (INFLATERS) {
+            if (idleInflaters < POOL_SIZE) {
+                INFLATERS[idleInflaters++] = inflater;
+                return;
+            }
+        }
+        inflater.end();
+    }
+    // endregion
+}
@@ -0,0 +1,42 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A minimal equivalent of {@code java.util.concurrent.Flow}, which is only available from API
+ * 30, with the same interfaces and rules, so adapting a publisher to Flow or to a reactive
+ * library is a matter of forwarding calls. The only difference is that {@link Subscriber#onNext}
+ * may receive null, for a key which is not stored and has no default value.
+ */
+public final class PrefFlow {
+
+    private PrefFlow() {
+    }
+
+    public interface Publisher<T> {
+
+        void subscribe(@NonNull Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+
+        void onSubscribe(@NonNull Subscription subscription);
+
+        void onNext(@Nullable T item);
+
+        void onError(@NonNull Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+
+        /**
+         * Adds demand for n more items, n must be positive.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+}
@@ -0,0 +1,119 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Set;
+
+/**
+ * A typed handle to a preference key together with its default value, to be declared once by a
+ * {@link SharedPref} implementation, e.g.
+ * <pre>
+ * private static final PrefKey&lt;Integer&gt; COUNT = PrefKey.ofInt("count", 0);
+ * </pre>
+ * A handle remembers the cache slot it resolved to, so reading through it skips hashing the key
+ * as long as the cache layout doesn't change, and its type is checked when it resolves instead of
+ * on every read.
+ * <p>
+ * Handles are immutable apart from the remembered slot and can be shared between threads and
+ * stores, a handle used with several stores resolves again whenever it moves between them.
+ */
+public final class PrefKey<T> {
+
+    private final String name;
+    private final byte type;
+    private final T defValue;
+
+    /**
+     * The slot this key resolved to in the cache it was last read from.
+     */
+    private volatile Resolution resolution;
+
+    private PrefKey(@NonNull String name, byte type, @Nullable T defValue) {
+
+        this.name = name;
+        this.type = type;
+        this.defValue = defValue;
+    }
+
+    @NonNull
+    public static PrefKey<Boolean> ofBoolean(@NonNull String name, boolean defValue) {
+        return new PrefKey<>(name, PrefCache.TYPE_BOOLEAN, defValue);
+    }
+
+    @NonNull
+    public static PrefKey<Integer> ofInt(@NonNull String name, int defValue) {
+        return new PrefKey<>(name, PrefCache.TYPE_INT, defValue);
+    }
+
+    @NonNull
+    public static PrefKey<Long> ofLong(@NonNull String name, long defValue) {
+        return new PrefKey<>(name, PrefCache.TYPE_LONG, defValue);
+    }
+
+    @NonNull
+    public static PrefKey<Float> ofFloat(@NonNull String name, float defValue) {
+        return new PrefKey<>(name, PrefCache.TYPE_FLOAT, defValue);
+    }
+
+    @NonNull
+    public static PrefKey<String> ofString(@NonNull String name, @Nullable String defValue) {
+        return new PrefKey<>(name, PrefCache.TYPE_STRING, defValue);
+    }
+
+    @NonNull
+    public static PrefKey<Set<String>> ofStringSet(@NonNull String name,
+                                                   @Nullable Set<String> defValue) {
+        return new PrefKey<Set<String>>(name, PrefCache.TYPE_STRING_SET, defValue);
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value read through this key when it is not stored, never null for primitive
+     * keys.
+     */
+    @Nullable
+    public T getDefault() {
+        return defValue;
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    /**
+     * @return the slot of this key in the given cache, or -1 if the key is not cached.
+     * @throws ClassCastException if the key holds a value of another type.
+     */
+    int slotIn(@NonNull PrefCache cache) {
+
+        Resolution resolved = resolution;
+        if (resolved != null && resolved.cache == cache) {
+            return resolved.slot;
+        }
+        int index = cache.indexOf(name);
+        int slot = index >= 0 ? cache.slotOf(index, type) : -1;
+        resolution = new Resolution(cache, slot);
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static final class Resolution {
+
+        final PrefCache cache;
+        final int slot;
+
+        Resolution(@NonNull PrefCache cache, int slot) {
+            this.cache = cache;
+            this.slot = slot;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in instrumentation of {@link SharedPref} stores: cache hit and miss counters, and per
+ * operation counts and latency histograms, grouped by store name.
+ * <p>
+ * Metrics are off by default. {@link #setEnabled(boolean)} only affects stores opened afterwards,
+ * a store opened while metrics are disabled keeps a null reference and pays a single null check
+ * per operation. Counters are striped to keep cached reads on many threads from contending on a
+ * single cache line.
+ * <p>
+ * The work of {@link PrefCompression} is recorded for all storages together, while metrics are
+ * enabled, see {@link #compression()}.
+ */
+public final class PrefMetrics {
+
+    /**
+     * The instrumented operations. Puts, deletes, clears and batches record the time spent
+     * waiting for the store's writer lock and their total latency, which includes the commit when
+     * writing synchronously.
+     */
+    public enum Operation {
+        PUT, DELETE, CLEAR, BATCH, FLUSH, CACHE_ALL
+    }
+
+    private static final ConcurrentMap<String, PrefMetrics> STORES = new ConcurrentHashMap<>();
+    private static volatile boolean enabled;
+    private static volatile CompressionMetrics compression = new CompressionMetrics();
+
+    private final String name;
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Map<Operation, Histogram> lockWaits = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Histogram commits = new Histogram();
+
+    private PrefMetrics(@NonNull String name) {
+
+        this.name = name;
+        for (Operation operation : Operation.values()) {
+            lockWaits.put(operation, new Histogram());
+            latencies.put(operation, new Histogram());
+        }
+    }
+
+    /**
+     * Enables or disables metrics for stores opened afterwards.
+     */
+    public static void setEnabled(boolean enabled) {
+        PrefMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the metrics of the given store, stores sharing a name share their metrics.
+     */
+    @NonNull
+    static PrefMetrics of(@NonNull String name) {
+
+        PrefMetrics metrics = STORES.get(name);
+        if (metrics == null) {
+            PrefMetrics created = new PrefMetrics(name);
+            metrics = STORES.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return a snapshot of the metrics of every instrumented store, by store name.
+     */
+    @NonNull
+    public static Map<String, Snapshot> snapshot() {
+
+        Map<String, Snapshot> result = new TreeMap<>();
+        for (PrefMetrics metrics : STORES.values()) {
+            result.put(metrics.name, metrics.takeSnapshot());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return a snapshot of the compression metrics of all storages.
+     */
+    @NonNull
+    public static CompressionSnapshot compression() {
+        return compression.snapshot();
+    }
+
+    /**
+     * Writes {@link #snapshot()} as text, one line per store and metric, followed by the
+     * {@link #compression()} metrics if anything was compressed.
+     */
+    public static void export(@NonNull Appendable out) throws IOException {
+
+        for (Snapshot snapshot : snapshot().values()) {
+            out.append(snapshot.toString());
+        }
+        CompressionSnapshot compression = compression();
+        if (compression.getCompressions() > 0 || compression.getDecompressions() > 0) {
+            out.append(compression.toString()).append('\n');
+        }
+    }
+
+    /**
+     * Drops the metrics of all stores, stores which are still open keep recording into their old
+     * metrics, and the compression metrics.
+     */
+    public static void reset() {
+        STORES.clear();
+        compression = new CompressionMetrics();
+    }
+
+    // region Recording
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordLockWait(@NonNull Operation operation, long nanos) {
+        lockWaits.get(operation).record(nanos);
+    }
+
+    void recordLatency(@NonNull Operation operation, long nanos) {
+        latencies.get(operation).record(nanos);
+    }
+
+    void recordCommit(long nanos) {
+        commits.record(nanos);
+    }
+
+    /**
+     * Records the compression of a value, size is the compressed size or the original size if
+     * it didn't shrink.
+     */
+    static void recordCompression(int originalSize, int size, long nanos) {
+
+        if (enabled) {
+            compression.recordCompression(originalSize, size, nanos);
+        }
+    }
+
+    static void recordDecompression(long nanos) {
+
+        if (enabled) {
+            compression.decompressions.record(nanos);
+        }
+    }
+    // endregion
+
+    @NonNull
+    private Snapshot takeSnapshot() {
+
+        Map<Operation, HistogramSnapshot> lockWaitSnapshots = new EnumMap<>(Operation.class);
+        Map<Operation, HistogramSnapshot> latencySnapshots = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            lockWaitSnapshots.put(operation, lockWaits.get(operation).snapshot());
+            latencySnapshots.put(operation, latencies.get(operation).snapshot());
+        }
+        return new Snapshot(name, hits.sum(), misses.sum(), lockWaitSnapshots, latencySnapshots,
+                commits.snapshot());
+    }
+
+    /**
+     * The metrics of one store at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final String name;
+        private final long cacheHits;
+        private final long cacheMisses;
+        private final Map<Operation, HistogramSnapshot> lockWaits;
+        private final Map<Operation, HistogramSnapshot> latencies;
+        private final HistogramSnapshot commits;
+
+        Snapshot(@NonNull String name, long cacheHits, long cacheMisses,
+                 @NonNull Map<Operation, HistogramSnapshot> lockWaits,
+                 @NonNull Map<Operation, HistogramSnapshot> latencies,
+                 @NonNull HistogramSnapshot commits) {
+
+            this.name = name;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.lockWaits = lockWaits;
+            this.latencies = latencies;
+            this.commits = commits;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        /**
+         * @return the number of reads of keys which were not cached, whether they returned the
+         * default value or read through to the storage.
+         */
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+
+        @NonNull
+        public HistogramSnapshot getLockWait(@NonNull Operation operation) {
+            return lockWaits.get(operation);
+        }
+
+        /**
+         * @return the latency of the operation, its count is the number of operations.
+         */
+        @NonNull
+        public HistogramSnapshot getLatency(@NonNull Operation operation) {
+            return latencies.get(operation);
+        }
+
+        /**
+         * @return the latency of the commits to the storage. Concurrent writes which share a
+         * commit record it once.
+         */
+        @NonNull
+        public HistogramSnapshot getCommitLatency() {
+            return commits;
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder builder = new StringBuilder();
+            builder.append(name).append(" cache hits=").append(cacheHits)
+                    .append(" misses=").append(cacheMisses).append('\n');
+            for (Operation operation : Operation.values()) {
+                HistogramSnapshot latency = latencies.get(operation);
+                if (latency.getCount() > 0) {
+                    builder.append(name).append(' ').append(operation).append(" latency ")
+                            .append(latency).append('\n');
+                    builder.append(name).append(' ').append(operation).append(" lock wait ")
+                            .append(lockWaits.get(operation)).append('\n');
+                }
+            }
+            builder.append(name).append(" commit latency ").append(commits).append('\n');
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The compression metrics of all storages at one point in time.
+     */
+    public static final class CompressionSnapshot {
+
+        private final long originalBytes;
+        private final long compressedBytes;
+        private final long uncompressed;
+        private final HistogramSnapshot compressions;
+        private final HistogramSnapshot decompressions;
+
+        CompressionSnapshot(long originalBytes, long compressedBytes, long uncompressed,
+                            @NonNull HistogramSnapshot compressions,
+                            @NonNull HistogramSnapshot decompressions) {
+
+            this.originalBytes = originalBytes;
+            this.compressedBytes = compressedBytes;
+            this.uncompressed = uncompressed;
+            this.compressions = compressions;
+            this.decompressions = decompressions;
+        }
+
+        /**
+         * @return the number of values which were compressed, including those written as they
+         * are because they didn't shrink.
+         */
+        public long getCompressions() {
+            return compressions.getCount();
+        }
+
+        /**
+         * @return the number of compressed values which didn't shrink.
+         */
+        public long getUncompressed() {
+            return uncompressed;
+        }
+
+        public long getDecompressions() {
+            return decompressions.getCount();
+        }
+
+        /**
+         * @return the UTF-8 size of the values which were compressed.
+         */
+        public long getOriginalBytes() {
+            return originalBytes;
+        }
+
+        /**
+         * @return the size the values were written with.
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        public long getBytesSaved() {
+            return originalBytes - compressedBytes;
+        }
+
+        @NonNull
+        public HistogramSnapshot getCompressionLatency() {
+            return compressions;
+        }
+
+        @NonNull
+        public HistogramSnapshot getDecompressionLatency() {
+            return decompressions;
+        }
+
+        @Override
+        public String toString() {
+            return "compression saved=" + getBytesSaved() + "B of " + originalBytes
+                    + "B uncompressed=" + uncompressed + " compress " + compressions
+                    + " decompress " + decompressions;
+        }
+    }
+
+    /**
+     * A latency distribution in power of two buckets: bucket 0 counts zero nanoseconds and bucket
+     * i counts durations from 2^(i-1) up to 2^i - 1 nanoseconds.
+     */
+    public static final class HistogramSnapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long totalNanos;
+
+        HistogramSnapshot(@NonNull long[] buckets, long totalNanos) {
+
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.totalNanos = totalNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the upper bound of the bucket holding the given percentile.
+         */
+        public long getPercentileNanos(double percentile) {
+
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @NonNull
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + getMeanNanos() + "ns p50<="
+                    + getPercentileNanos(50) + "ns p99<=" + getPercentileNanos(99) + "ns";
+        }
+    }
+
+    private static final class CompressionMetrics {
+
+        private final Counter originalBytes = new Counter();
+        private final Counter compressedBytes = new Counter();
+        private final Counter uncompressed = new Counter();
+        private final Histogram compressions = new Histogram();
+        private final Histogram decompressions = new Histogram();
+
+        void recordCompression(int originalSize, int size, long nanos) {
+
+            originalBytes.add(originalSize);
+            compressedBytes.add(size);
+            if (size >= originalSize) {
+                uncompressed.increment();
+            }
+            compressions.record(nanos);
+        }
+
+        @NonNull
+        CompressionSnapshot snapshot() {
+            return new CompressionSnapshot(originalBytes.sum(), compressedBytes.sum(),
+                    uncompressed.sum(), compressions.snapshot(), decompressions.snapshot());
+        }
+    }
+
+    /**
+     * A lock-free power of two latency histogram.
+     */
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final Counter total = new Counter();
+
+        void record(long nanos) {
+
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets.getAndIncrement(Math.min(63, 64 - Long.numberOfLeadingZeros(nanos)));
+            total.add(nanos);
+        }
+
+        @NonNull
+        HistogramSnapshot snapshot() {
+
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(counts, total.sum());
+        }
+    }
+
+    /**
+     * A counter striped by thread over padded cells.
+     */
+    private static final class Counter {
+
+        private static final int STRIPES = 16;
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        void increment() {
+            add(1);
+        }
+
+        void add(long delta) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            cells.getAndAdd(stripe * PADDING, delta);
+        }
+
+        long sum() {
+
+            long sum = 0;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                sum += cells.get(stripe * PADDING);
+            }
+            return sum;
+        }
+    }
+}
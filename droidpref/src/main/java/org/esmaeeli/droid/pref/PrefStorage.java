@@ -0,0 +1,57 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The persistent store behind a {@link SharedPref}.
+ * <p>
+ * {@link SharedPref} does all caching, locking, batching and migration on top of this interface,
+ * so it behaves the same on any backend: {@link AndroidPrefStorage} for
+ * {@link android.content.SharedPreferences}, {@link FilePrefStorage} for a plain file and
+ * {@link MemoryPrefStorage} for tests and benchmarks.
+ * <p>
+ * Implementations must be thread safe. Values are Boolean, Integer, Long, Float, String or
+ * Set&lt;String&gt;, and getters throw {@link ClassCastException} when a key holds another type.
+ */
+public interface PrefStorage {
+
+    /**
+     * @return a snapshot of all stored values which the caller may keep.
+     */
+    @NonNull
+    Map<String, ?> getAll();
+
+    boolean contains(@NonNull String key);
+
+    boolean getBoolean(@NonNull String key, boolean defValue);
+
+    int getInt(@NonNull String key, int defValue);
+
+    long getLong(@NonNull String key, long defValue);
+
+    float getFloat(@NonNull String key, float defValue);
+
+    @Nullable
+    String getString(@NonNull String key, @Nullable String defValue);
+
+    @Nullable
+    Set<String> getStringSet(@NonNull String key, @Nullable Set<String> defValue);
+
+    /**
+     * Writes a batch of changes at once and durably: first the clear, if
+     * {@link PrefChanges#isClear()}, then the puts and removes.
+     *
+     * @return whether the changes were written.
+     */
+    boolean commit(@NonNull PrefChanges changes);
+
+    /**
+     * Like {@link #commit(PrefChanges)}, except that the changes only have to be visible to the
+     * getters when this method returns and may be written to disk later.
+     */
+    void apply(@NonNull PrefChanges changes);
+}
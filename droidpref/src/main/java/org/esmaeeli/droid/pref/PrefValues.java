@@ -0,0 +1,172 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Set;
+
+/**
+ * The values of a group of keys which are read together, e.g. the endpoint settings of a server,
+ * filled by {@link SharedPref#read(PrefValues)} from a single consistent state of the store.
+ * <pre>
+ * private final PrefValues endpoint = new PrefValues(HOST, PORT, TLS, TIMEOUT);
+ * ...
+ * read(endpoint);
+ * connect(endpoint.getString(HOST), endpoint.getInt(PORT), endpoint.getBoolean(TLS));
+ * </pre>
+ * Primitive values are held without wrapper objects, so refilling a holder doesn't allocate.
+ * Missing keys read as their default value. A holder is not thread-safe, threads reading the same
+ * group concurrently use a holder each.
+ */
+public final class PrefValues {
+
+    private final PrefKey<?>[] keys;
+    private final long[] primitives;
+    private final Object[] refs;
+    private final boolean[] stored;
+
+    public PrefValues(@NonNull PrefKey<?>... keys) {
+
+        this.keys = keys.clone();
+        this.primitives = new long[keys.length];
+        this.refs = new Object[keys.length];
+        this.stored = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            setDefault(i);
+        }
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return whether the key was stored when the values were read, rather than read as its
+     * default value.
+     */
+    public boolean contains(@NonNull PrefKey<?> key) {
+        return stored[indexOf(key)];
+    }
+
+    public boolean getBoolean(@NonNull PrefKey<Boolean> key) {
+        return primitives[indexOf(key)] != 0;
+    }
+
+    public int getInt(@NonNull PrefKey<Integer> key) {
+        return (int) primitives[indexOf(key)];
+    }
+
+    public long getLong(@NonNull PrefKey<Long> key) {
+        return primitives[indexOf(key)];
+    }
+
+    public float getFloat(@NonNull PrefKey<Float> key) {
+        return Float.intBitsToFloat((int) primitives[indexOf(key)]);
+    }
+
+    @Nullable
+    public String getString(@NonNull PrefKey<String> key) {
+        return (String) refs[indexOf(key)];
+    }
+
+    @Nullable
+    public Set<String> getStringSet(@NonNull PrefKey<Set<String>> key) {
+        //noinspection unchecked
+        return (Set<String>) refs[indexOf(key)];
+    }
+
+    private int indexOf(@NonNull PrefKey<?> key) {
+
+        // Groups are small, a scan beats hashing.
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Key \"" + key + "\" is not part of this group");
+    }
+
+    // region Filling
+    /*
+     * Primitives are held as longs: booleans as 0 or 1, ints as they are and floats as their raw
+     * int bits.
+     */
+
+    @NonNull
+    PrefKey<?> keyAt(int i) {
+        return keys[i];
+    }
+
+    void setPrimitive(int i, long value) {
+        primitives[i] = value;
+        stored[i] = true;
+    }
+
+    void setRef(int i, @NonNull Object value) {
+        refs[i] = value;
+        stored[i] = true;
+    }
+
+    void setDefault(int i) {
+
+        Object defValue = keys[i].getDefault();
+        switch (keys[i].getType()) {
+            case PrefCache.TYPE_BOOLEAN:
+                primitives[i] = (Boolean) defValue ? 1 : 0;
+                break;
+            case PrefCache.TYPE_INT:
+                primitives[i] = (Integer) defValue;
+                break;
+            case PrefCache.TYPE_LONG:
+                primitives[i] = (Long) defValue;
+                break;
+            case PrefCache.TYPE_FLOAT:
+                primitives[i] = Float.floatToRawIntBits((Float) defValue);
+                break;
+            default:
+                refs[i] = defValue;
+                break;
+        }
+        stored[i] = false;
+    }
+
+    /**
+     * Reads the keys which were not cached from the storage.
+     */
+    void readThrough(@NonNull PrefStorage storage) {
+
+        for (int i = 0; i < keys.length; i++) {
+            String name = keys[i].getName();
+            if (stored[i] || !storage.contains(name)) {
+                continue;
+            }
+            switch (keys[i].getType()) {
+                case PrefCache.TYPE_BOOLEAN:
+                    setPrimitive(i, storage.getBoolean(name, false) ? 1 : 0);
+                    break;
+                case PrefCache.TYPE_INT:
+                    setPrimitive(i, storage.getInt(name, 0));
+                    break;
+                case PrefCache.TYPE_LONG:
+                    setPrimitive(i, storage.getLong(name, 0));
+                    break;
+                case PrefCache.TYPE_FLOAT:
+                    setPrimitive(i, Float.floatToRawIntBits(storage.getFloat(name, 0)));
+                    break;
+                case PrefCache.TYPE_STRING:
+                    String string = storage.getString(name, null);
+                    if (string != null) {
+                        setRef(i, string);
+                    }
+                    break;
+                default:
+                    Set<String> set = storage.getStringSet(name, null);
+                    if (set != null) {
+                        setRef(i, set);
+                    }
+                    break;
+            }
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,291 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link PrefStorage} which splits one logical store over a fixed number of shards by key hash,
+ * each of them a storage of its own, e.g. a {@link FilePrefStorage} per file.
+ * <p>
+ * This storage takes no lock of its own, so commits of keys on different shards run in parallel
+ * and each of them only rewrites its shard. Use it with striped writes, see
+ * {@link SharedPref#getLockStripeCount()}, to let a store commit puts of different keys
+ * concurrently. A commit spanning several shards commits them in parallel on the given executor.
+ * Such a commit is not atomic: each shard commits atomically, and when one of them fails, the
+ * shards which succeeded are rolled back to the values they had before, as long as no other
+ * commit touched the same keys meanwhile. If a rollback fails too, those shards keep the new
+ * values while the commit reports failure. A clear clears every shard.
+ * <p>
+ * Keys are only looked up in their shard, so the number of shards of a store must never change.
+ */
+public final class ShardedPrefStorage implements PrefStorage {
+
+    private final PrefStorage[] shards;
+    private final Executor executor;
+
+    /**
+     * @param executor the executor to commit changes spanning several shards on, or null to
+     *                 commit them one after the other on the calling thread.
+     */
+    public ShardedPrefStorage(@NonNull List<? extends PrefStorage> shards,
+                              @Nullable Executor executor) {
+
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        this.shards = shards.toArray(new PrefStorage[shards.size()]);
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a storage of {@link FilePrefStorage} shards named after the store in the given
+     * directory.
+     */
+    @NonNull
+    public static ShardedPrefStorage ofFiles(@NonNull File directory, @NonNull String name,
+                                             int shardCount, @Nullable Executor executor) {
+
+        List<PrefStorage> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new FilePrefStorage(new File(directory, name + "." + i + ".dpf")));
+        }
+        return new ShardedPrefStorage(shards, executor);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, ?> getAll() {
+
+        Map<String, Object> values = new HashMap<>();
+        for (PrefStorage shard : shards) {
+            values.putAll(shard.getAll());
+        }
+        return values;
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) {
+        return shardOf(key).contains(key);
+    }
+
+    @Override
+    public boolean getBoolean(@NonNull String key, boolean defValue) {
+        return shardOf(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public int getInt(@NonNull String key, int defValue) {
+        return shardOf(key).getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(@NonNull String key, long defValue) {
+        return shardOf(key).getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(@NonNull String key, float defValue) {
+        return shardOf(key).getFloat(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public String getString(@NonNull String key, @Nullable String defValue) {
+        return shardOf(key).getString(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(@NonNull String key, @Nullable Set<String> defValue) {
+        return shardOf(key).getStringSet(key, defValue);
+    }
+
+    @Override
+    public boolean commit(@NonNull PrefChanges changes) {
+
+        PrefChanges[] split = split(changes);
+        int count = 0;
+        int last = -1;
+        for (int i = 0; i < split.length; i++) {
+            if (split[i] != null) {
+                count++;
+                last = i;
+            }
+        }
+        if (count == 1) {
+            // Atomic on its own, with nothing to roll back.
+            return shards[last].commit(split[last]);
+        }
+
+        PrefChanges[] rollbacks = rollbacks(split);
+        boolean[] results = commit(split);
+        boolean result = true;
+        for (int i = 0; i < split.length; i++) {
+            result &= split[i] == null || results[i];
+        }
+        if (!result) {
+            for (int i = 0; i < split.length; i++) {
+                if (split[i] != null && results[i]) {
+                    shards[i].commit(rollbacks[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void apply(@NonNull PrefChanges changes) {
+
+        PrefChanges[] split = split(changes);
+        for (int i = 0; i < split.length; i++) {
+            if (split[i] != null) {
+                shards[i].apply(split[i]);
+            }
+        }
+    }
+
+    /**
+     * Commits the changes of each shard, those of the first shard on the calling thread.
+     *
+     * @return whether the commit of each shard with changes succeeded.
+     */
+    @NonNull
+    private boolean[] commit(@NonNull PrefChanges[] split) {
+
+        boolean[] results = new boolean[split.length];
+        List<FutureTask<Boolean>> tasks = new ArrayList<>();
+        List<Integer> taskShards = new ArrayList<>();
+        int local = -1;
+        for (int i = 0; i < split.length; i++) {
+            if (split[i] == null) {
+                continue;
+            }
+            if (local < 0) {
+                local = i;
+            } else if (executor != null) {
+                FutureTask<Boolean> task = commitTask(i, split[i]);
+                tasks.add(task);
+                taskShards.add(i);
+                executor.execute(task);
+            } else {
+                results[i] = shards[i].commit(split[i]);
+            }
+        }
+        if (local >= 0) {
+            results[local] = shards[local].commit(split[local]);
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            results[taskShards.get(i)] = await(tasks.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * @return the changes restoring the current values of the keys which the changes of each
+     * shard touch, null for shards without changes.
+     */
+    @NonNull
+    private PrefChanges[] rollbacks(@NonNull PrefChanges[] split) {
+
+        PrefChanges[] rollbacks = new PrefChanges[split.length];
+        for (int i = 0; i < split.length; i++) {
+            if (split[i] == null) {
+                continue;
+            }
+            Map<String, ?> values = shards[i].getAll();
+            PrefChanges rollback = rollbacks[i] = new PrefChanges();
+            if (split[i].isClear()) {
+                rollback.clear();
+                for (Map.Entry<String, ?> entry : values.entrySet()) {
+                    rollback.put(entry.getKey(), entry.getValue());
+                }
+            } else {
+                for (String key : split[i].getValues().keySet()) {
+                    Object value = values.get(key);
+                    if (value != null) {
+                        rollback.put(key, value);
+                    } else {
+                        rollback.remove(key);
+                    }
+                }
+            }
+        }
+        return rollbacks;
+    }
+
+    @NonNull
+    private PrefStorage shardOf(@NonNull String key) {
+        return shards[indexOf(key)];
+    }
+
+    private int indexOf(@NonNull String key) {
+
+        int hash = key.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * @return the changes of each shard, null for shards without changes.
+     */
+    @NonNull
+    private PrefChanges[] split(@NonNull PrefChanges changes) {
+
+        PrefChanges[] split = new PrefChanges[shards.length];
+        if (changes.isClear()) {
+            for (int i = 0; i < split.length; i++) {
+                split[i] = new PrefChanges();
+                split[i].clear();
+            }
+        }
+        for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+            int index = indexOf(entry.getKey());
+            if (split[index] == null) {
+                split[index] = new PrefChanges();
+            }
+            split[index].put(entry.getKey(), entry.getValue());
+        }
+        return split;
+    }
+
+    @NonNull
+    private FutureTask<Boolean> commitTask(final int shard, @NonNull final PrefChanges changes) {
+
+        return new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return shards[shard].commit(changes);
+            }
+        });
+    }
+
+    private static boolean await(@NonNull FutureTask<Boolean> task) {
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -1,15 +1,46 @@
 package org.esmaeeli.droid.pref;
 
-import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-
-import java.util.HashMap;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An abstract wrapper on SharedPreferences which provides
@@ -17,6 +48,31 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * - Thread safety
  * - Caching
  * <p>
+ * Reads are lock-free and primitive values are cached without boxing, see {@link PrefCache}. The
+ * cache can be bounded by the weight of its String and Set values, see
+ * {@link #getCacheByteLimit()}.
+ * Writers update the cache after each successful commit, or immediately in write-behind mode, see
+ * {@link #getWriteBehindDelay()}. Concurrent synchronous writers share commits: writers arriving
+ * while a commit is in flight are grouped and written by the next single commit, unless puts
+ * are striped by key, see {@link #getLockStripeCount()}. Once {@link #cacheAll()} has run the
+ * cache holds every stored key and a miss returns the default value without touching the storage.
+ * <p>
+ * Values are persisted through a {@link PrefStorage}, which is {@link SharedPreferences} unless
+ * another storage is passed to the constructor.
+ * <p>
+ * Byte values are stored inline or, when large, in blob files which are read through read-only
+ * memory mappings, see {@link #putBytes(String, byte[])}.
+ * <p>
+ * Changes can be observed per key or key set, see
+ * {@link #addOnChangeListener(Collection, Executor, OnChangeListener)}.
+ * <p>
+ * On a {@link MultiProcessPrefStorage} every read first compares the storage's generation with
+ * the one the cache reflects, and when it moved on updates the keys which other processes changed
+ * and notifies their observers.
+ * <p>
+ * Stores created while {@link PrefMetrics} are enabled record cache hits and misses, lock waits
+ * and operation and commit latencies.
+ * <p>
  * This wrapper hides access to the actual {@link SharedPreferences} class, thus the implementation
  * has only to provide its own interface for the preferences it provides and doesn't have to worry
  * about it's consumer having access to keys or mistakenly reading a wrong type from a key and such
@@ -33,22 +89,270 @@ public abstract class SharedPref {
 
     private static final String KEY_VERSION = "file_version";
 
-    private SharedPreferences preferences;
-    private ReentrantReadWriteLock lock;
-    private Map<String, Object> cache;
+    private static final String BLOB_DIRECTORY = "droidpref-blobs";
+
+    private static volatile OnOpenListener onOpenListener;
+
+    private static final int MISS_DEFAULT = 0;
+    private static final int MISS_READ_THROUGH = 1;
+    private static final int MISS_RETRY = 2;
+
+    /**
+     * The number of lock-free attempts of {@link #read(PrefValues)} before it locks.
+     */
+    private static final int OPTIMISTIC_READS = 4;
+
+    /**
+     * The number of entries {@link #exportTo(OutputStream)} reads from the cache at once.
+     */
+    private static final int EXPORT_CHUNK = 256;
+
+    /**
+     * Runs internal change listeners on the writing thread, after it released the locks.
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private PrefStorage storage;
+    private ReentrantLock lock;
+
+    /**
+     * The cached values. Getters read it without locking. Writers, holding {@link #lock},
+     * overwrite the slot of an existing key in place and publish a new cache through this volatile
+     * field when the key layout changes.
+     */
+    private volatile PrefCache cache;
+
+    /**
+     * Whether {@link #cache} holds every stored key, so that a miss needs no read-through.
+     */
+    private volatile boolean cacheComplete;
+
+    /**
+     * Write-behind state, guarded by {@link #lock}. {@link #pending} holds the changes which are
+     * already visible through the cache but not handed to the writer yet, and {@link #inFlight}
+     * the changes which are being committed. {@link #pendingBlobs} holds the blob references
+     * which the pending changes replace or remove, deleted once they are committed.
+     */
+    private long writeBehindDelay = -1;
+    private PrefChanges pending = new PrefChanges();
+    private PrefChanges inFlight;
+    private List<String> pendingBlobs = new ArrayList<>();
+    private boolean flushScheduled;
+    private long enqueuedCount;
+    private long durableCount;
+    private Condition durableChanged;
+
+    /**
+     * Serializes write-behind commits so they reach the file in order.
+     */
+    private ReentrantLock flushLock;
+
+    /**
+     * Group commit state, guarded by {@link #lock}.
+     */
+    private CommitGroup openGroup;
+    private boolean committing;
+    private Condition groupCommitted;
+
+    /**
+     * Open state. {@link #ready} completes once the store is opened, {@link #openingThread} is the
+     * thread running the migration, which reads through to {@link #storage} meanwhile.
+     */
+    private Future<Void> ready;
+    private volatile Thread openingThread;
+    private boolean servingDefaults;
+
+    /**
+     * The metrics of this store, or null if {@link PrefMetrics} were disabled when it was created.
+     */
+    private PrefMetrics metrics;
+
+    /**
+     * Lock stripes of the striped write mode, or null if it is disabled, see
+     * {@link #getLockStripeCount()}. Stripes are taken before {@link #lock}, store-wide writers
+     * take all of them in ascending order and anything which replaces {@link #cache} or changes
+     * its layout holds all of them.
+     */
+    private ReentrantLock[] stripes;
+
+    private final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<>();
+
+    /**
+     * The storage if other processes may write to it, or null, and its generation which
+     * {@link #cache} reflects, see {@link #cache()}.
+     */
+    private MultiProcessPrefStorage multiProcessStorage;
+    private volatile long generation;
+
+    /**
+     * The weight the cached values are trimmed to, or -1 if the cache is not bounded, see
+     * {@link #getCacheByteLimit()}.
+     */
+    private long cacheByteLimit;
+
+    /**
+     * The byte values, set while opening, and the largest byte value to store inline.
+     */
+    private PrefBlobs blobs;
+    private int inlineBytesLimit;
 
-    @SuppressLint("ApplySharedPref")
     public SharedPref(@NonNull Context context) {
+        this(context, null, null);
+    }
+
+    /**
+     * Opens the store on the given executor and returns immediately when an executor is given.
+     * Loading, migration and caching then run in the background and {@link #getReadyFuture()}
+     * completes when they are done. Until then getters of keys which are not cached yet block,
+     * or return their default value if {@link #isServingDefaultsUntilReady()} says so, and writers
+     * block.
+     * <p>
+     * Note that {@link #getName()}, {@link #getVersion()} and {@link #migrate(int, int)} are then
+     * called on the executor, possibly before the constructor of the implementation returns.
+     *
+     * @param executor the executor to open the store on, or null to open it synchronously.
+     */
+    public SharedPref(@NonNull Context context, @Nullable Executor executor) {
+        this(context, null, executor);
+    }
+
+    /**
+     * Creates a store on top of the given storage instead of {@link SharedPreferences}, which also
+     * allows to use it on a plain JVM.
+     */
+    public SharedPref(@NonNull PrefStorage storage) {
+        this(null, storage, null);
+    }
+
+    /**
+     * Creates a store on top of the given storage, opening it on the executor if one is given. See
+     * {@link #SharedPref(Context, Executor)}.
+     */
+    public SharedPref(@NonNull PrefStorage storage, @Nullable Executor executor) {
+        this(null, storage, executor);
+    }
+
+    private SharedPref(@Nullable final Context context, @Nullable final PrefStorage storage,
+                       @Nullable Executor executor) {
+
+        lock = new ReentrantLock();
+        durableChanged = lock.newCondition();
+        groupCommitted = lock.newCondition();
+        flushLock = new ReentrantLock();
+        cache = PrefCache.EMPTY;
+        if (storage instanceof MultiProcessPrefStorage) {
+            multiProcessStorage = (MultiProcessPrefStorage) storage;
+        }
+        int stripeCount = getLockStripeCount();
+        if (stripeCount > 1) {
+            int count = Integer.highestOneBit(stripeCount - 1) << 1;
+            stripes = new ReentrantLock[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+        }
+        cacheByteLimit = getCacheByteLimit();
+        if (context != null && cacheByteLimit >= 0) {
+            context.getApplicationContext().registerComponentCallbacks(new TrimCallbacks(this));
+        }
+        if (PrefMetrics.isEnabled()) {
+            metrics = PrefMetrics.of(getName());
+        }
+        if (executor == null) {
+            open(context, storage);
+            FutureTask<Void> opened = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            opened.run();
+            ready = opened;
+        } else {
+            servingDefaults = isServingDefaultsUntilReady();
+            FutureTask<Void> opening = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    open(context, storage);
+                }
+            }, null);
+            ready = opening;
+            executor.execute(opening);
+        }
+    }
+
+    /**
+     * Opens the store with a single read pass, which provides both the saved version and the
+     * values to cache. The version is only written, and the values only read again, when a
+     * migration ran.
+     */
+    private void open(@Nullable Context context, @Nullable PrefStorage storage) {
+
+        openingThread = Thread.currentThread();
+        try {
+            long start = System.nanoTime();
+            if (storage == null) {
+                //noinspection ConstantConditions
+                storage = new AndroidPrefStorage(
+                        context.getSharedPreferences(getName(), Context.MODE_PRIVATE));
+            }
+            this.storage = storage;
+            File blobDirectory = getBlobDirectory();
+            if (blobDirectory == null && context != null) {
+                blobDirectory = new File(new File(context.getFilesDir(), BLOB_DIRECTORY),
+                        getName());
+            }
+            blobs = new PrefBlobs(blobDirectory);
+            inlineBytesLimit = getInlineBytesLimit();
+            if (multiProcessStorage != null) {
+                generation = multiProcessStorage.getGeneration();
+            }
+            Map<String, ?> values = loadAll();
+            Object savedVersion = values.get(KEY_VERSION);
+            int oldVersion = savedVersion instanceof Integer ? (Integer) savedVersion : 1;
+            boolean migrated = oldVersion != getVersion();
+
+            long opened = System.nanoTime();
+            long migrationDone = opened;
+            long versionWritten = opened;
+            if (migrated) {
+                migrate(oldVersion, getVersion());
+                migrationDone = System.nanoTime();
+                PrefChanges version = new PrefChanges();
+                version.put(KEY_VERSION, getVersion());
+                storage.commit(version);
+                values = loadAll();
+                versionWritten = System.nanoTime();
+            }
+
+            lock.lock();
+            try {
+                writeBehindDelay = getWriteBehindDelay();
+            } finally {
+                lock.unlock();
+            }
+            if (multiProcessStorage == null) {
+                // Before the cache is complete, which lets writers of new blobs in. Other
+                // processes may be about to commit references to new blobs.
+                blobs.deleteUnreferenced(values);
+            }
+            cacheAll(values);
+            long cached = System.nanoTime();
+
+            OnOpenListener listener = onOpenListener;
+            if (listener != null) {
+                listener.onOpened(getName(), new OpenTimings(migrated, opened - start,
+                        migrationDone - opened, versionWritten - migrationDone,
+                        cached - versionWritten));
+            }
 
-        lock = new ReentrantReadWriteLock(true);
-        cache = new HashMap<>();
-        preferences = context.getSharedPreferences(getName(), Context.MODE_PRIVATE);
-        int savedVersion = preferences.getInt(KEY_VERSION, 1);
-        if (savedVersion != getVersion()) {
-            migrate(savedVersion, getVersion());
+        } finally {
+            openingThread = null;
         }
-        preferences.edit().putInt(KEY_VERSION, getVersion()).commit();
-        cacheAll();
     }
 
     protected abstract int getVersion();
@@ -57,257 +361,2192 @@ public abstract class SharedPref {
 
     protected abstract void migrate(int oldVersion, int newVersion);
 
+    /**
+     * Enables write-behind when overridden to return zero or more. Puts, deletes and batches then
+     * update the cache and return at once, while a background writer coalesces the queued changes
+     * into a single commit at most this many milliseconds after the first of them. Reads see the
+     * queued changes immediately. Use {@link #flush()} or {@link #awaitDurable(long, TimeUnit)}
+     * where durability matters.
+     * <p>
+     * Called once from the constructor after migration, which always writes synchronously.
+     *
+     * @return the write-behind delay in milliseconds, or a negative value to commit every change
+     * synchronously.
+     */
+    protected long getWriteBehindDelay() {
+        return -1;
+    }
+
+    /**
+     * Enables striped writes when overridden to return more than one. A synchronous put of a key
+     * which is already stored with the same type then only locks the stripe its key hashes to, and
+     * commits it to the storage concurrently with puts of keys on other stripes. Puts of a key on
+     * the same stripe stay ordered. Other writes, i.e. deletes, clears, batches, puts which add a
+     * key or change its type, migrations and {@link #cacheAll()}, lock all stripes.
+     * <p>
+     * Reads never lock either way. Striped puts commit one by one instead of sharing commits, so
+     * they only pay off with a storage which commits concurrently. Ignored in write-behind mode.
+     * Called once from the constructor.
+     *
+     * @return the number of lock stripes, rounded up to a power of two.
+     */
+    protected int getLockStripeCount() {
+        return 1;
+    }
+
+    /**
+     * Bounds the cache when overridden to return zero or more. Once the String and Set values in
+     * the cache weigh more than this many bytes, by a rough estimate of their heap footprint, large
+     * values which were not read recently are evicted and reloaded from the storage when read
+     * again. Primitives and values lighter than a few hundred bytes are never evicted. Stores
+     * opened with a {@link Context} also trim their cache when the system runs low on memory,
+     * other stores can call {@link #trimCache(long)}.
+     * <p>
+     * A {@link FilePrefStorage} holds values in their encoding until they are read, so an evicted
+     * value is only held as its encoded bytes there. Storages which hold decoded values, e.g.
+     * {@link SharedPreferences}, keep them in memory either way. Called once from the constructor.
+     *
+     * @return the cache limit in bytes, or a negative value to cache every value.
+     */
+    protected long getCacheByteLimit() {
+        return -1;
+    }
+
+    /**
+     * The directory to store byte values larger than {@link #getInlineBytesLimit()} in, a file
+     * per value, see {@link #putBytes(String, byte[])}. Stores opened with a {@link Context}
+     * default to a directory named after the store in the app's files directory, other stores
+     * keep all byte values inline by default. Called once while opening the store.
+     *
+     * @return the blob directory, which must only be used by this store, or null for the default.
+     */
+    @Nullable
+    protected File getBlobDirectory() {
+        return null;
+    }
+
+    /**
+     * Called once while opening the store.
+     *
+     * @return the largest byte value in bytes which is stored inline rather than in a blob file.
+     */
+    protected int getInlineBytesLimit() {
+        return 4 * 1024;
+    }
+
+    /**
+     * Whether getters called before an asynchronous open completes return their default value
+     * instead of blocking until the store is opened. Called once from the constructor.
+     */
+    protected boolean isServingDefaultsUntilReady() {
+        return false;
+    }
+
+    /**
+     * @return a future which completes once the store is opened, or fails with the exception
+     * thrown while opening it.
+     */
+    @NonNull
+    protected final Future<Void> getReadyFuture() {
+        return ready;
+    }
+
     // region Get
     protected final boolean getBoolean(@NonNull String key, boolean defValue) {
 
-        lock.readLock().lock();
-        try {
-            if (cache.containsKey(key)) {
-                return (boolean) cache.get(key);
+        PrefCache snapshot = cache();
+        int index = snapshot.indexOf(key);
+        if (index >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            boolean value = preferences.getBoolean(key, defValue);
-            cache.put(key, value);
-            return value;
-
-        } finally {
-            lock.readLock().unlock();
+            return snapshot.getBoolean(index);
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getBoolean(key, defValue);
+            case MISS_READ_THROUGH:
+                return storage.getBoolean(key, defValue);
+            default:
+                return defValue;
         }
     }
 
     protected final int getInt(@NonNull String key, int defValue) {
 
-        lock.readLock().lock();
-        try {
-            if (cache.containsKey(key)) {
-                return (int) cache.get(key);
+        PrefCache snapshot = cache();
+        int index = snapshot.indexOf(key);
+        if (index >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            int value = preferences.getInt(key, defValue);
-            cache.put(key, value);
-            return value;
-
-        } finally {
-            lock.readLock().unlock();
+            return snapshot.getInt(index);
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getInt(key, defValue);
+            case MISS_READ_THROUGH:
+                return storage.getInt(key, defValue);
+            default:
+                return defValue;
         }
     }
 
     protected final long getLong(@NonNull String key, long defValue) {
 
-        lock.readLock().lock();
-        try {
-            if (cache.containsKey(key)) {
-                return (long) cache.get(key);
+        PrefCache snapshot = cache();
+        int index = snapshot.indexOf(key);
+        if (index >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            long value = preferences.getLong(key, defValue);
-            cache.put(key, value);
-            return value;
-
-        } finally {
-            lock.readLock().unlock();
+            return snapshot.getLong(index);
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getLong(key, defValue);
+            case MISS_READ_THROUGH:
+                return storage.getLong(key, defValue);
+            default:
+                return defValue;
         }
 
     }
 
     protected final float getFloat(@NonNull String key, float defValue) {
 
-        lock.readLock().lock();
-        try {
-            if (cache.containsKey(key)) {
-                return (float) cache.get(key);
+        PrefCache snapshot = cache();
+        int index = snapshot.indexOf(key);
+        if (index >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            float value = preferences.getFloat(key, defValue);
-            cache.put(key, value);
-            return value;
-
-        } finally {
-            lock.readLock().unlock();
+            return snapshot.getFloat(index);
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getFloat(key, defValue);
+            case MISS_READ_THROUGH:
+                return storage.getFloat(key, defValue);
+            default:
+                return defValue;
         }
     }
 
     @Nullable
     protected final String getString(@NonNull String key, @Nullable String defValue) {
 
-        lock.readLock().lock();
-        try {
-            if (cache.containsKey(key)) {
-                return (String) cache.get(key);
+        PrefCache snapshot = cache();
+        int index = snapshot.indexOf(key);
+        if (index >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            String value = preferences.getString(key, defValue);
-            cache.put(key, value);
-            return value;
-
-        } finally {
-            lock.readLock().unlock();
+            if (cacheByteLimit >= 0) {
+                snapshot.touch(index);
+            }
+            String value = snapshot.getString(index);
+            return value != null ? value : (String) reload(key, defValue);
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getString(key, defValue);
+            case MISS_READ_THROUGH:
+                return storage.getString(key, defValue);
+            default:
+                return defValue;
         }
     }
 
     @Nullable
     protected final Set<String> getStringSet(@NonNull String key, @Nullable Set<String> defValue) {
 
-        lock.readLock().lock();
-        try {
-            if (cache.containsKey(key)) {
-                //noinspection unchecked
-                return (Set<String>) cache.get(key);
+        PrefCache snapshot = cache();
+        int index = snapshot.indexOf(key);
+        if (index >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            Set<String> value = preferences.getStringSet(key, defValue);
-            cache.put(key, value);
-            return value;
-
-        } finally {
-            lock.readLock().unlock();
+            if (cacheByteLimit >= 0) {
+                snapshot.touch(index);
+            }
+            Set<String> value = snapshot.getStringSet(index);
+            //noinspection unchecked
+            return value != null ? value : (Set<String>) reload(key, defValue);
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getStringSet(key, defValue);
+            case MISS_READ_THROUGH:
+                return storage.getStringSet(key, defValue);
+            default:
+                return defValue;
         }
     }
     // endregion
 
     protected final boolean containsKey(@NonNull String key) {
-        lock.readLock().lock();
-        try {
-            return cache.containsKey(key) || preferences.contains(key);
-        } finally {
-            lock.readLock().unlock();
+
+        if (cache().indexOf(key) >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
+            }
+            return true;
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return containsKey(key);
+            case MISS_READ_THROUGH:
+                return storage.contains(key);
+            default:
+                return false;
         }
     }
 
-    // region Put
-    protected final boolean putBoolean(@NonNull String key, boolean value) {
+    /**
+     * @return the cache for a read, first updated with the commits of other processes when the
+     * generation of a multi-process storage moved on.
+     */
+    @NonNull
+    PrefCache cache() {
+
+        MultiProcessPrefStorage shared = multiProcessStorage;
+        if (shared != null && shared.getGeneration() != generation) {
+            refresh(shared);
+        }
+        return cache;
+    }
 
-        lock.writeLock().lock();
+    /**
+     * Applies the changes which other processes committed to the cache, keeping queued
+     * write-behind changes on top, and notifies the observers of the changed keys.
+     */
+    private void refresh(@NonNull MultiProcessPrefStorage shared) {
+
+        if (!cacheComplete) {
+            // Opening caches all values.
+            return;
+        }
+        PrefCache before;
+        PrefChanges changes;
+        lockStripes();
+        lock.lock();
         try {
-            boolean result = preferences.edit().putBoolean(key, value).commit();
-            if (result) {
-                cache.put(key, value);
+            long latest = shared.getGeneration();
+            if (latest == generation) {
+                return;
+            }
+            changes = shared.refresh();
+            generation = latest;
+            before = cache;
+            if (!changes.isEmpty()) {
+                PrefCache next = changes.applyTo(cache);
+                if (inFlight != null) {
+                    next = inFlight.applyTo(next);
+                }
+                if (!pending.isEmpty()) {
+                    next = pending.applyTo(next);
+                }
+                cache = next;
             }
-            return result;
 
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
+            unlockStripes();
+        }
+        if (!changes.isEmpty()) {
+            trimIfNeeded();
+            notifyChanged(changes, before);
         }
+    }
+
+    /**
+     * Decides how a getter handles a key which is not cached: return the default value if the
+     * cache is complete, read through during migration, or wait for the store to be opened and
+     * look the key up again.
+     */
+    private int onMiss() {
 
+        if (cacheComplete) {
+            recordMiss();
+            return MISS_DEFAULT;
+        }
+        if (openingThread == Thread.currentThread()) {
+            recordMiss();
+            return MISS_READ_THROUGH;
+        }
+        if (servingDefaults && !ready.isDone()) {
+            recordMiss();
+            return MISS_DEFAULT;
+        }
+        awaitOpen();
+        return MISS_RETRY;
     }
 
-    protected final boolean putInt(@NonNull String key, int value) {
+    private void recordMiss() {
 
-        lock.writeLock().lock();
+        if (metrics != null) {
+            metrics.recordMiss();
+        }
+    }
+
+    private void awaitOpen() {
+
+        boolean interrupted = false;
         try {
-            boolean result = preferences.edit().putInt(key, value).commit();
-            if (result) {
-                cache.put(key, value);
+            while (true) {
+                try {
+                    ready.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Failed to open " + getName(), e.getCause());
+                }
             }
-            return result;
-
         } finally {
-            lock.writeLock().unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
+    }
+
+    // region Put
+    protected final boolean putBoolean(@NonNull String key, boolean value) {
+        return write(key, value, value ? 1 : 0);
+    }
 
+    protected final boolean putInt(@NonNull String key, int value) {
+        return write(key, value, value);
     }
 
     protected final boolean putLong(@NonNull String key, long value) {
+        return write(key, value, value);
+    }
 
-        lock.writeLock().lock();
-        try {
-            boolean result = preferences.edit().putLong(key, value).commit();
-            if (result) {
-                cache.put(key, value);
-            }
-            return result;
+    protected final boolean putFloat(@NonNull String key, float value) {
+        return write(key, value, Float.floatToRawIntBits(value));
+    }
 
-        } finally {
-            lock.writeLock().unlock();
-        }
+    /**
+     * @throws IllegalArgumentException if the value starts with U+FDD0, which marks byte values,
+     *                                  see {@link #putBytes(String, byte[])}.
+     */
+    protected final boolean putString(@NonNull String key, @Nullable String value) {
+        PrefBlobs.checkString(value);
+        return write(key, value);
+    }
 
+    protected final boolean putStringSet(@NonNull String key, @Nullable Set<String> value) {
+        return write(key, value);
     }
+    // endregion
 
-    protected final boolean putFloat(@NonNull String key, float value) {
+    // region Key handles
+    /*
+     * Getters and setters taking a PrefKey, which reads the cache slot the key resolved to and
+     * returns the key's default value for missing keys. See PrefKey.
+     */
 
-        lock.writeLock().lock();
-        try {
-            boolean result = preferences.edit().putFloat(key, value).commit();
-            if (result) {
-                cache.put(key, value);
-            }
-            return result;
+    protected final boolean getBoolean(@NonNull PrefKey<Boolean> key) {
 
-        } finally {
-            lock.writeLock().unlock();
+        PrefCache snapshot = cache();
+        int slot = key.slotIn(snapshot);
+        if (slot >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
+            }
+            return snapshot.readBoolean(slot);
+        }
+        //noinspection ConstantConditions
+        boolean defValue = key.getDefault();
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getBoolean(key);
+            case MISS_READ_THROUGH:
+                return storage.getBoolean(key.getName(), defValue);
+            default:
+                return defValue;
         }
-
     }
 
-    protected final boolean putString(@NonNull String key, @Nullable String value) {
+    protected final int getInt(@NonNull PrefKey<Integer> key) {
 
-        lock.writeLock().lock();
-        try {
-            boolean result = preferences.edit().putString(key, value).commit();
-            if (result) {
-                cache.put(key, value);
+        PrefCache snapshot = cache();
+        int slot = key.slotIn(snapshot);
+        if (slot >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            return result;
+            return snapshot.readInt(slot);
+        }
+        //noinspection ConstantConditions
+        int defValue = key.getDefault();
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getInt(key);
+            case MISS_READ_THROUGH:
+                return storage.getInt(key.getName(), defValue);
+            default:
+                return defValue;
+        }
+    }
 
-        } finally {
-            lock.writeLock().unlock();
+    protected final long getLong(@NonNull PrefKey<Long> key) {
+
+        PrefCache snapshot = cache();
+        int slot = key.slotIn(snapshot);
+        if (slot >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
+            }
+            return snapshot.readLong(slot);
         }
+        //noinspection ConstantConditions
+        long defValue = key.getDefault();
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getLong(key);
+            case MISS_READ_THROUGH:
+                return storage.getLong(key.getName(), defValue);
+            default:
+                return defValue;
+        }
+    }
 
+    protected final float getFloat(@NonNull PrefKey<Float> key) {
+
+        PrefCache snapshot = cache();
+        int slot = key.slotIn(snapshot);
+        if (slot >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
+            }
+            return snapshot.readFloat(slot);
+        }
+        //noinspection ConstantConditions
+        float defValue = key.getDefault();
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getFloat(key);
+            case MISS_READ_THROUGH:
+                return storage.getFloat(key.getName(), defValue);
+            default:
+                return defValue;
+        }
     }
 
-    protected final boolean putStringSet(@NonNull String key, @Nullable Set<String> value) {
+    @Nullable
+    protected final String getString(@NonNull PrefKey<String> key) {
 
-        lock.writeLock().lock();
-        try {
-            boolean result = preferences.edit().putStringSet(key, value).commit();
-            if (result) {
-                cache.put(key, value);
+        PrefCache snapshot = cache();
+        int slot = key.slotIn(snapshot);
+        if (slot >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
             }
-            return result;
+            if (cacheByteLimit >= 0) {
+                snapshot.touchRef(slot);
+            }
+            Object value = snapshot.readRef(slot);
+            return (String) (value != null ? value : reload(key.getName(), key.getDefault()));
+        }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getString(key);
+            case MISS_READ_THROUGH:
+                return storage.getString(key.getName(), key.getDefault());
+            default:
+                return key.getDefault();
+        }
+    }
 
-        } finally {
-            lock.writeLock().unlock();
+    @Nullable
+    protected final Set<String> getStringSet(@NonNull PrefKey<Set<String>> key) {
+
+        PrefCache snapshot = cache();
+        int slot = key.slotIn(snapshot);
+        if (slot >= 0) {
+            if (metrics != null) {
+                metrics.recordHit();
+            }
+            if (cacheByteLimit >= 0) {
+                snapshot.touchRef(slot);
+            }
+            Object value = snapshot.readRef(slot);
+            //noinspection unchecked
+            return (Set<String>) (value != null ? value
+                    : reload(key.getName(), key.getDefault()));
         }
+        switch (onMiss()) {
+            case MISS_RETRY:
+                return getStringSet(key);
+            case MISS_READ_THROUGH:
+                return storage.getStringSet(key.getName(), key.getDefault());
+            default:
+                return key.getDefault();
+        }
+    }
+
+    protected final boolean containsKey(@NonNull PrefKey<?> key) {
+        return containsKey(key.getName());
+    }
+
+    protected final boolean putBoolean(@NonNull PrefKey<Boolean> key, boolean value) {
+        return write(key.getName(), value, value ? 1 : 0);
+    }
 
+    protected final boolean putInt(@NonNull PrefKey<Integer> key, int value) {
+        return write(key.getName(), value, value);
+    }
+
+    protected final boolean putLong(@NonNull PrefKey<Long> key, long value) {
+        return write(key.getName(), value, value);
+    }
+
+    protected final boolean putFloat(@NonNull PrefKey<Float> key, float value) {
+        return write(key.getName(), value, Float.floatToRawIntBits(value));
+    }
+
+    protected final boolean putString(@NonNull PrefKey<String> key, @Nullable String value) {
+        PrefBlobs.checkString(value);
+        return write(key.getName(), value);
+    }
+
+    protected final boolean putStringSet(@NonNull PrefKey<Set<String>> key,
+                                         @Nullable Set<String> value) {
+        return write(key.getName(), value);
+    }
+
+    protected final boolean deleteKey(@NonNull PrefKey<?> key) {
+        return write(key.getName(), null);
     }
     // endregion
 
-    protected final boolean deleteKey(@NonNull String key) {
+    // region Grouped reads
+    /**
+     * Reads the values of the keys together, see {@link #read(PrefValues)}.
+     */
+    @NonNull
+    protected final PrefValues read(@NonNull PrefKey<?>... keys) {
 
-        lock.writeLock().lock();
-        try {
-            boolean result = preferences.edit().remove(key).commit();
-            if (result) {
-                cache.remove(key);
+        PrefValues values = new PrefValues(keys);
+        read(values);
+        return values;
+    }
+
+    /**
+     * Fills the holder with the values its keys had at a single point in time, so a write which
+     * changes several of them is either seen entirely or not at all.
+     * <p>
+     * The values are read without locking and read again if an in-place write overlapped them.
+     * After a few overlapped attempts, or if a value has to be reloaded into a
+     * bounded cache, they are read while holding the writer locks instead.
+     */
+    protected final void read(@NonNull PrefValues values) {
+
+        PrefCache snapshot = cache();
+        int missing = -1;
+        for (int attempt = 0; attempt < OPTIMISTIC_READS && missing < 0; attempt++) {
+            long stamp = snapshot.beginRead();
+            if (stamp >= 0) {
+                missing = fill(snapshot, values, false);
+                if (!snapshot.validate(stamp)) {
+                    missing = -1;
+                }
             }
-            return result;
+        }
+        if (missing < 0) {
+            lockStripes();
+            lock.lock();
+            try {
+                missing = fill(cache, values, true);
+            } finally {
+                lock.unlock();
+                unlockStripes();
+            }
+        }
+        if (metrics != null) {
+            for (int i = values.size() - missing; i > 0; i--) {
+                metrics.recordHit();
+            }
+        }
+        if (missing > 0) {
+            switch (onMiss()) {
+                case MISS_RETRY:
+                    read(values);
+                    break;
+                case MISS_READ_THROUGH:
+                    values.readThrough(storage);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
 
-        } finally {
-            lock.writeLock().unlock();
+    /**
+     * Copies the values of the holder's keys from the cache, their defaults for missing keys.
+     *
+     * @param locked whether the caller holds {@link #lock} and all {@link #stripes} and the cache
+     *               is the current one, which allows to reload evicted values.
+     * @return the number of missing keys, or -1 if an evicted value has to be reloaded.
+     */
+    private int fill(@NonNull PrefCache snapshot, @NonNull PrefValues values, boolean locked) {
+
+        int missing = 0;
+        for (int i = 0; i < values.size(); i++) {
+            PrefKey<?> key = values.keyAt(i);
+            int slot = key.slotIn(snapshot);
+            if (slot < 0) {
+                values.setDefault(i);
+                missing++;
+                continue;
+            }
+            switch (key.getType()) {
+                case PrefCache.TYPE_BOOLEAN:
+                    values.setPrimitive(i, snapshot.readBoolean(slot) ? 1 : 0);
+                    break;
+                case PrefCache.TYPE_INT:
+                    values.setPrimitive(i, snapshot.readInt(slot));
+                    break;
+                case PrefCache.TYPE_LONG:
+                    values.setPrimitive(i, snapshot.readLong(slot));
+                    break;
+                case PrefCache.TYPE_FLOAT:
+                    values.setPrimitive(i, Float.floatToRawIntBits(snapshot.readFloat(slot)));
+                    break;
+                default:
+                    if (cacheByteLimit >= 0) {
+                        snapshot.touchRef(slot);
+                    }
+                    Object value = snapshot.readRef(slot);
+                    if (value == null) {
+                        if (!locked) {
+                            return -1;
+                        }
+                        value = reload(key.getName(), key.getDefault());
+                    }
+                    if (value != null) {
+                        values.setRef(i, value);
+                    } else {
+                        values.setDefault(i);
+                    }
+                    break;
+            }
         }
+        return missing;
+    }
+    // endregion
 
+    // region Batch
+    /**
+     * Starts a batch of changes which are written with a single editor. See {@link Batch}.
+     */
+    @NonNull
+    protected final Batch edit() {
+        return new Batch();
     }
 
-    protected final boolean clearAll() {
+    /**
+     * Collects puts and removes and writes them with a single
+     * {@link PrefStorage#commit(PrefChanges)}, so updating many related keys costs one file write
+     * instead of one per key. Operations take effect in the order they are called, so
+     * {@link #clear()} only drops what was recorded before it.
+     * <p>
+     * The cache is updated at once, readers either see none or all of the changes of a batch. A
+     * batch is meant to be filled and finished by a single thread and can only be finished once.
+     */
+    public final class Batch {
+
+        private final PrefChanges changes = new PrefChanges();
+        private boolean finished;
+
+        private Batch() {
+        }
 
-        lock.writeLock().lock();
-        try {
-            boolean result = preferences.edit().clear().commit();
-            if (result) {
-                cache.clear();
+        @NonNull
+        public Batch putBoolean(@NonNull String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Batch putInt(@NonNull String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Batch putLong(@NonNull String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Batch putFloat(@NonNull String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Batch putString(@NonNull String key, @Nullable String value) {
+            PrefBlobs.checkString(value);
+            changes.put(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Batch putStringSet(@NonNull String key, @Nullable Set<String> value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Batch remove(@NonNull String key) {
+            changes.remove(key);
+            return this;
+        }
+
+        @NonNull
+        public Batch clear() {
+            changes.clear();
+            return this;
+        }
+
+        /**
+         * Writes the batch synchronously and updates the cache only if the write succeeded. In
+         * write-behind mode the batch is queued like any other change.
+         *
+         * @return the result of {@link PrefStorage#commit(PrefChanges)}.
+         */
+        public boolean commit() {
+            return write(true);
+        }
+
+        /**
+         * Updates the cache immediately and writes the batch asynchronously, see
+         * {@link PrefStorage#apply(PrefChanges)}.
+         */
+        public void apply() {
+            write(false);
+        }
+
+        private boolean write(boolean sync) {
+
+            if (finished) {
+                throw new IllegalStateException("Batch is already finished");
+            }
+            finished = true;
+            if (changes.isEmpty()) {
+                return true;
             }
-            return result;
 
-        } finally {
-            lock.writeLock().unlock();
+            return SharedPref.this.write(changes, sync, PrefMetrics.Operation.BATCH);
         }
     }
+    // endregion
 
-    protected final void cacheAll() {
+    protected final boolean deleteKey(@NonNull String key) {
+        return write(key, null);
+    }
 
-        lock.writeLock().lock();
+    // region Bytes
+    /**
+     * Stores bytes, inline as Base64 if they are small or the store has no blob directory, in a
+     * new blob file otherwise, see {@link #getBlobDirectory()}. Blob files are written and synced
+     * before the reference to them is committed, so large values never bloat the storage or pass
+     * through String decoding. The blob of a value which is overwritten or removed is deleted once
+     * the change is committed, in write-behind mode once it is flushed. Blobs left behind by
+     * {@link Batch#apply()} or a crash are deleted when the store is opened the next time.
+     * <p>
+     * Keys holding bytes must only be read with the byte methods. Their stored references start
+     * with U+FDD0, which plain String values therefore may not start with.
+     *
+     * @param value the bytes, or null to delete the key.
+     */
+    protected final boolean putBytes(@NonNull String key, @Nullable byte[] value) {
+
+        awaitWritable();
+        String reference;
         try {
-            cache.clear();
-            cache.putAll(preferences.getAll());
+            reference = value != null ? blobs.store(value, inlineBytesLimit) : null;
+        } catch (IOException e) {
+            return false;
+        }
+        return replaceBytes(key, reference);
+    }
 
-        } finally {
-            lock.writeLock().unlock();
+    /**
+     * Stores the bytes of the stream, which is read to its end but not closed, in a new blob file
+     * or inline if the store has no blob directory. See {@link #putBytes(String, byte[])}.
+     *
+     * @throws IOException if reading the stream or writing the blob fails.
+     */
+    protected final boolean putBytes(@NonNull String key, @NonNull InputStream in)
+            throws IOException {
+
+        awaitWritable();
+        return replaceBytes(key, blobs.store(in));
+    }
+
+    /**
+     * @return a read-only buffer of the bytes, which maps the blob file of large values instead of
+     * copying it to the heap, or null if the key is not stored. Each call returns a new buffer,
+     * which stays valid after the value is overwritten.
+     * @throws ClassCastException if the key holds another type.
+     */
+    @Nullable
+    protected final ByteBuffer getBytes(@NonNull String key) {
+
+        while (true) {
+            String reference = getString(key, null);
+            if (reference == null) {
+                return null;
+            }
+            ByteBuffer bytes;
+            try {
+                bytes = blobs.read(key, reference);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to map the bytes of " + key, e);
+            }
+            // A missing blob was either lost or replaced by a concurrent put.
+            if (bytes != null || reference.equals(getString(key, null))) {
+                return bytes;
+            }
         }
+    }
 
+    /**
+     * @return a stream of the bytes, which the caller must close, or null if the key is not
+     * stored.
+     * @throws ClassCastException if the key holds another type.
+     */
+    @Nullable
+    protected final InputStream openBytes(@NonNull String key) {
+
+        while (true) {
+            String reference = getString(key, null);
+            if (reference == null) {
+                return null;
+            }
+            InputStream in = blobs.open(key, reference);
+            if (in != null || reference.equals(getString(key, null))) {
+                return in;
+            }
+        }
     }
 
+    /**
+     * Commits the reference to a byte value, or deletes its blob if that fails. The blob of the
+     * previous value is deleted by the write, see {@link #replacedBlobs(PrefChanges, PrefCache)}.
+     */
+    private boolean replaceBytes(@NonNull String key, @Nullable String reference) {
+
+        boolean result = write(key, reference);
+        if (!result) {
+            blobs.delete(reference);
+        }
+        return result;
+    }
+
+    /**
+     * @return the blob references which the changes overwrite or remove in the given cache, or
+     * null if there are none. Their files can be deleted once the changes are committed.
+     */
+    @Nullable
+    private List<String> replacedBlobs(@NonNull PrefChanges changes, @NonNull PrefCache current) {
+
+        if (!blobs.hasDirectory()) {
+            return null;
+        }
+        List<String> replaced = null;
+        if (changes.isClear()) {
+            for (Object value : current.toMap().values()) {
+                if (PrefBlobs.isBlob(value)) {
+                    if (replaced == null) {
+                        replaced = new ArrayList<>();
+                    }
+                    replaced.add((String) EncodedValue.decode(value));
+                }
+            }
+            return replaced;
+        }
+        for (Map.Entry<String, Object> change : changes.getValues().entrySet()) {
+            int index = current.indexOf(change.getKey());
+            if (index < 0 || current.typeAt(index) != PrefCache.TYPE_STRING) {
+                continue;
+            }
+            Object value = current.getStored(index);
+            if (value != null && PrefBlobs.isBlob(value)) {
+                String reference = (String) EncodedValue.decode(value);
+                if (!reference.equals(change.getValue())) {
+                    if (replaced == null) {
+                        replaced = new ArrayList<>();
+                    }
+                    replaced.add(reference);
+                }
+            }
+        }
+        return replaced;
+    }
+
+    private void deleteBlobs(@Nullable List<String> references) {
+
+        if (references != null) {
+            for (String reference : references) {
+                blobs.delete(reference);
+            }
+        }
+    }
+
+    /**
+     * Waits for the store to be opened, unless called by the opening thread.
+     */
+    private void awaitWritable() {
+
+        if (!cacheComplete && openingThread != Thread.currentThread()) {
+            awaitOpen();
+        }
+    }
+    // endregion
+
+    // region Backup
+    /**
+     * Writes all values to the stream, in a compact typed binary format which
+     * {@link #importFrom(InputStream, boolean)} reads, without copying the store into a map.
+     * Values are read from the cache in chunks, each of which reflects a single point in time.
+     * String and Set values which were never read are copied in their stored encoding, and byte
+     * values are streamed from their blob files. The stream is flushed but not closed.
+     */
+    @WorkerThread
+    protected final void exportTo(@NonNull OutputStream out) throws IOException {
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(PrefArchive.MAGIC);
+        ExportChunk chunk = new ExportChunk();
+        while (chunk.next()) {
+            for (int i = 0; i < chunk.size; i++) {
+                String key = chunk.keys[i];
+                Object value = chunk.values[i];
+                if (value == null) {
+                    continue;
+                }
+                if (!PrefBlobs.isBytes(value)) {
+                    PrefArchive.writeValue(data, key, value);
+                    continue;
+                }
+                InputStream in = blobs.open(key, (String) EncodedValue.decode(value));
+                if (in == null) {
+                    // Replaced since the chunk was read.
+                    in = openBytes(key);
+                }
+                if (in != null) {
+                    try {
+                        PrefArchive.writeBytes(data, key, in);
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        }
+        data.writeByte(PrefArchive.RECORD_END);
+        data.flush();
+    }
+
+    /**
+     * Writes all values as a JSON object, read in chunks like {@link #exportTo(OutputStream)}.
+     * String sets are written as arrays and byte values as their stored reference. The output is
+     * meant for inspection and can't be imported, since JSON doesn't tell ints, longs and floats
+     * apart.
+     */
+    @WorkerThread
+    protected final void exportJson(@NonNull Appendable out) throws IOException {
+
+        out.append('{');
+        boolean first = true;
+        ExportChunk chunk = new ExportChunk();
+        while (chunk.next()) {
+            for (int i = 0; i < chunk.size; i++) {
+                if (chunk.values[i] == null) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                PrefArchive.appendJsonString(out, chunk.keys[i]);
+                out.append(':');
+                PrefArchive.appendJson(out, EncodedValue.decode(chunk.values[i]));
+            }
+        }
+        out.append('}');
+    }
+
+    /**
+     * Reads an export of {@link #exportTo(OutputStream)} and writes its values as a single batch,
+     * so a restore costs one commit however many values it holds. Byte values are stored like
+     * {@link #putBytes(String, InputStream)} stores them, before the batch is written. The stream
+     * is read up to the end of the export, possibly further, and not closed.
+     *
+     * @param replace whether to remove the keys which are not part of the export.
+     * @return the result of the batch, see {@link Batch#commit()}.
+     * @throws IOException if reading the stream fails or it is not a valid export.
+     */
+    @WorkerThread
+    protected final boolean importFrom(@NonNull InputStream in, boolean replace)
+            throws IOException {
+
+        awaitWritable();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != PrefArchive.MAGIC) {
+            throw new IOException("Not an export of " + getName());
+        }
+        PrefChanges changes = new PrefChanges();
+        if (replace) {
+            changes.clear();
+            changes.put(KEY_VERSION, getVersion());
+        }
+        List<String> references = new ArrayList<>();
+        boolean result = false;
+        try {
+            byte record;
+            while ((record = data.readByte()) != PrefArchive.RECORD_END) {
+                String key = PrefCodec.readString(data);
+                // The version is the one of this store, whatever the export came from.
+                boolean skipped = KEY_VERSION.equals(key);
+                if (record == PrefArchive.RECORD_VALUE) {
+                    Object value = PrefCodec.readValue(data);
+                    // Byte values come as bytes records, a reference would name any file.
+                    if (value instanceof String && PrefBlobs.isReference((String) value)) {
+                        throw new IOException("Invalid String value of \"" + key + "\"");
+                    }
+                    if (!skipped) {
+                        changes.put(key, value);
+                    }
+                } else if (record == PrefArchive.RECORD_BYTES) {
+                    if (skipped) {
+                        PrefArchive.skipBytes(data);
+                    } else {
+                        String reference = storeBytes(PrefArchive.readBytes(data));
+                        references.add(reference);
+                        changes.put(key, reference);
+                    }
+                } else {
+                    throw new IOException("Unknown record type " + record);
+                }
+            }
+            result = changes.isEmpty() || write(changes, true, PrefMetrics.Operation.BATCH);
+
+        } finally {
+            if (!result) {
+                for (String reference : references) {
+                    blobs.delete(reference);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores imported bytes inline if they don't exceed the inline limit, in a blob file
+     * otherwise, reading the stream to its end.
+     *
+     * @return the reference to store.
+     */
+    @NonNull
+    private String storeBytes(@NonNull InputStream in) throws IOException {
+
+        byte[] head = new byte[inlineBytesLimit + 1];
+        int length = 0;
+        int count;
+        while (length < head.length
+                && (count = in.read(head, length, head.length - length)) >= 0) {
+            length += count;
+        }
+        if (length <= inlineBytesLimit) {
+            byte[] value = new byte[length];
+            System.arraycopy(head, 0, value, 0, length);
+            return blobs.store(value, inlineBytesLimit);
+        }
+        return blobs.store(new SequenceInputStream(new ByteArrayInputStream(head), in));
+    }
+
+    /**
+     * Reads the values of the cache in chunks of {@link #EXPORT_CHUNK} entries. A chunk is read
+     * without locking and read again if an in-place write overlapped it, like
+     * {@link #read(PrefValues)}, so the stream can be written without holding any lock.
+     */
+    private final class ExportChunk {
+
+        final String[] keys = new String[EXPORT_CHUNK];
+        final Object[] values = new Object[EXPORT_CHUNK];
+        int size;
+
+        private final PrefCache snapshot;
+        private int position;
+
+        ExportChunk() {
+
+            awaitWritable();
+            if (!cacheComplete) {
+                throw new IllegalStateException("Can't export " + getName() + " while opening");
+            }
+            snapshot = cache();
+        }
+
+        /**
+         * @return whether the next chunk holds any entries.
+         */
+        boolean next() {
+
+            int next = -1;
+            for (int attempt = 0; attempt < OPTIMISTIC_READS && next < 0; attempt++) {
+                long stamp = snapshot.beginRead();
+                if (stamp >= 0) {
+                    next = fill();
+                    if (!snapshot.validate(stamp)) {
+                        next = -1;
+                    }
+                }
+            }
+            if (next < 0) {
+                lockStripes();
+                lock.lock();
+                try {
+                    next = fill();
+                } finally {
+                    lock.unlock();
+                    unlockStripes();
+                }
+            }
+            position = next;
+            for (int i = 0; i < size; i++) {
+                if (values[i] == null) {
+                    // Evicted, the reloaded value may be newer than the rest of the chunk.
+                    values[i] = reload(keys[i], null);
+                }
+            }
+            return size > 0;
+        }
+
+        /**
+         * @return the position after the last entry of the chunk.
+         */
+        private int fill() {
+
+            size = 0;
+            int index = position;
+            for (; index < snapshot.capacity() && size < EXPORT_CHUNK; index++) {
+                String key = snapshot.keyAt(index);
+                if (key != null && !KEY_VERSION.equals(key)) {
+                    keys[size] = key;
+                    values[size] = snapshot.getStored(index);
+                    size++;
+                }
+            }
+            return index;
+        }
+    }
+    // endregion
+
+    protected final boolean clearAll() {
+
+        PrefChanges changes = new PrefChanges();
+        changes.clear();
+        return write(changes, true, PrefMetrics.Operation.CLEAR);
+    }
+
+    protected final void cacheAll() {
+        cacheAll(loadAll());
+    }
+
+    /**
+     * @return all stored values, with String and Set values left encoded when the storage can,
+     * so that only the values which are read get decoded.
+     */
+    @NonNull
+    private Map<String, ?> loadAll() {
+
+        if (storage instanceof EncodedPrefStorage) {
+            return ((EncodedPrefStorage) storage).getAllEncoded();
+        }
+        return storage.getAll();
+    }
+
+    private void cacheAll(@NonNull Map<String, ?> values) {
+
+        PrefMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        lockStripes();
+        lock.lock();
+        try {
+            if (metrics != null) {
+                metrics.recordLockWait(PrefMetrics.Operation.CACHE_ALL, System.nanoTime() - start);
+            }
+            PrefCache all = PrefCache.of(values);
+            if (inFlight != null) {
+                all = inFlight.applyTo(all);
+            }
+            if (!pending.isEmpty()) {
+                all = pending.applyTo(all);
+            }
+            cache = all;
+            cacheComplete = true;
+
+        } finally {
+            lock.unlock();
+            unlockStripes();
+            if (metrics != null) {
+                metrics.recordLatency(PrefMetrics.Operation.CACHE_ALL, System.nanoTime() - start);
+            }
+        }
+        trimIfNeeded();
+
+    }
+
+    // region Write
+    private boolean write(@NonNull String key, @Nullable Object value) {
+        return write(key, value, bitsOf(value));
+    }
+
+    /**
+     * @param bits the raw bits of a primitive value, see {@link #setInPlace(PrefCache, String,
+     *             Object, long)}, ignored for other values.
+     */
+    private boolean write(@NonNull String key, @Nullable Object value, long bits) {
+
+        PrefChanges changes = new PrefChanges();
+        changes.put(key, value);
+        if (value == null) {
+            return write(changes, true, PrefMetrics.Operation.DELETE);
+        }
+        // Other puts join the group commit without queueing on a stripe held by its leader.
+        if (stripes != null && cacheComplete && writeBehindDelay < 0 && isStriped(key, value)) {
+            PrefMetrics metrics = this.metrics;
+            long start = metrics != null ? System.nanoTime() : 0;
+            ReentrantLock stripe = stripes[stripeOf(key)];
+            boolean striped = false;
+            boolean result = false;
+            stripe.lock();
+            try {
+                // The layout can't change while holding a stripe.
+                PrefCache snapshot = cache;
+                if (isStriped(key, value)) {
+                    striped = true;
+                    if (metrics != null) {
+                        metrics.recordLockWait(PrefMetrics.Operation.PUT,
+                                System.nanoTime() - start);
+                    }
+                    List<String> replaced = value instanceof String
+                            ? replacedBlobs(changes, snapshot) : null;
+                    result = commit(changes);
+                    if (result) {
+                        setInPlace(snapshot, key, value, bits);
+                        deleteBlobs(replaced);
+                    }
+                    if (metrics != null) {
+                        metrics.recordLatency(PrefMetrics.Operation.PUT,
+                                System.nanoTime() - start);
+                    }
+                }
+
+            } finally {
+                stripe.unlock();
+            }
+            if (striped) {
+                if (result) {
+                    trimIfNeeded();
+                    notifyChanged(changes, PrefCache.EMPTY);
+                }
+                return result;
+            }
+        }
+        return write(changes, true, PrefMetrics.Operation.PUT);
+    }
+
+    /**
+     * @return the raw bits of a boxed primitive, as the primitive puts pass them to
+     * {@link #setInPlace(PrefCache, String, Object, long)}, or zero for other values.
+     */
+    private static long bitsOf(@Nullable Object value) {
+
+        if (value instanceof Integer || value instanceof Long) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Float) {
+            return Float.floatToRawIntBits((Float) value);
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Overwrites a cached value with the typed setter of a primitive, which needs no unboxing,
+     * or the boxed one otherwise.
+     *
+     * @param bits the value of a boolean as 0 or 1, of an int or long as it is and of a float as
+     *             its raw int bits.
+     */
+    private static boolean setInPlace(@NonNull PrefCache cache, @NonNull String key,
+                                      @NonNull Object value, long bits) {
+
+        if (value instanceof Integer) {
+            return cache.setInt(key, (int) bits);
+        } else if (value instanceof Long) {
+            return cache.setLong(key, bits);
+        } else if (value instanceof Float) {
+            return cache.setFloat(key, Float.intBitsToFloat((int) bits));
+        } else if (value instanceof Boolean) {
+            return cache.setBoolean(key, bits != 0);
+        }
+        return cache.set(key, value);
+    }
+
+    /**
+     * @return whether a put can take the striped path, i.e. whether the key is stored with the
+     * same type. Final only while holding the stripe of the key.
+     */
+    private boolean isStriped(@NonNull String key, @NonNull Object value) {
+
+        PrefCache snapshot = cache;
+        int index = snapshot.indexOf(key);
+        return index >= 0 && snapshot.typeAt(index) == PrefCache.typeOf(value);
+    }
+
+    /**
+     * Writes the changes according to the write mode and updates the cache.
+     *
+     * @param sync      whether to commit, rather than apply, when write-behind is disabled.
+     * @param operation the operation to record the write as, see {@link PrefMetrics}.
+     */
+    private boolean write(@NonNull PrefChanges changes, boolean sync,
+                          @NonNull PrefMetrics.Operation operation) {
+
+        awaitWritable();
+        PrefMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        PrefCache before;
+        boolean result;
+        // Group commits take the stripes themselves, see groupCommit.
+        boolean grouped = writeBehindDelay < 0 && sync;
+        if (!grouped) {
+            lockStripes();
+        }
+        lock.lock();
+        try {
+            if (metrics != null) {
+                metrics.recordLockWait(operation, System.nanoTime() - start);
+            }
+            before = cache;
+            if (writeBehindDelay >= 0) {
+                List<String> replaced = replacedBlobs(changes, cache);
+                if (replaced != null) {
+                    pendingBlobs.addAll(replaced);
+                }
+                pending.merge(changes);
+                scheduleFlush();
+                updateCache(changes);
+                result = true;
+            } else if (!sync) {
+                long applyStart = metrics != null ? System.nanoTime() : 0;
+                storage.apply(changes);
+                if (metrics != null) {
+                    metrics.recordCommit(System.nanoTime() - applyStart);
+                }
+                updateCache(changes);
+                result = true;
+            } else {
+                result = groupCommit(changes);
+            }
+
+        } finally {
+            lock.unlock();
+            if (!grouped) {
+                unlockStripes();
+            }
+            if (metrics != null) {
+                metrics.recordLatency(operation, System.nanoTime() - start);
+            }
+        }
+        if (result) {
+            trimIfNeeded();
+            notifyChanged(changes, before);
+        }
+        return result;
+    }
+
+    /**
+     * Commits the changes together with those of concurrent writers. The first writer which finds
+     * no commit in flight becomes the leader and commits the open group, writers arriving while a
+     * commit is in flight join the next group and wait, and each member gets the group's result.
+     * Must be called while holding {@link #lock}, which is released during the commit.
+     * <p>
+     * Writers join a group holding only {@link #lock}, and only the leader takes all
+     * {@link #stripes}, for the commit and the cache update. Writers arriving during a commit
+     * therefore join the next group instead of queueing on the stripes held by its leader.
+     */
+    private boolean groupCommit(@NonNull PrefChanges changes) {
+
+        if (openGroup == null && !committing && stripes == null) {
+            // Uncontended, so the changes are committed on their own without a group.
+            return lead(changes, null);
+        }
+        CommitGroup group = openGroup;
+        if (group == null) {
+            group = openGroup = new CommitGroup();
+        }
+        group.changes.merge(changes);
+        boolean striped = false;
+        try {
+            while (true) {
+                while (committing && !group.done) {
+                    groupCommitted.awaitUninterruptibly();
+                }
+                if (group.done) {
+                    return group.result;
+                }
+                if (striped || stripes == null) {
+                    break;
+                }
+                // The stripes are locked before the lock, another member may lead meanwhile.
+                lock.unlock();
+                lockStripes();
+                striped = true;
+                lock.lock();
+            }
+
+            openGroup = null;
+            return lead(group.changes, group);
+
+        } finally {
+            if (striped) {
+                unlockStripes();
+            }
+        }
+    }
+
+    /**
+     * Commits the changes as the leader, releasing {@link #lock} during the commit, then updates
+     * the cache and wakes the waiting writers. Must be called while holding {@link #lock} and, in
+     * striped mode, all {@link #stripes}.
+     *
+     * @param group the group the changes belong to, or null if they are a single writer's.
+     */
+    private boolean lead(@NonNull PrefChanges changes, @Nullable CommitGroup group) {
+
+        committing = true;
+        // The cache matches the storage while holding all stripes between commits.
+        List<String> replaced = replacedBlobs(changes, cache);
+        boolean result = false;
+        lock.unlock();
+        try {
+            result = commit(changes);
+            if (result) {
+                deleteBlobs(replaced);
+            }
+
+        } finally {
+            lock.lock();
+            committing = false;
+            if (group != null) {
+                group.done = true;
+                group.result = result;
+            }
+            if (result) {
+                updateCache(changes);
+            }
+            groupCommitted.signalAll();
+        }
+        return result;
+    }
+
+    /**
+     * Commits the changes to the storage, recording the commit latency.
+     */
+    private boolean commit(@NonNull PrefChanges changes) {
+
+        PrefMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return storage.commit(changes);
+        }
+        long start = System.nanoTime();
+        try {
+            return storage.commit(changes);
+        } finally {
+            metrics.recordCommit(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Applies written changes to the cache, in place for a single key when the layout allows it.
+     * Must be called while holding {@link #lock} and all {@link #stripes}.
+     */
+    private void updateCache(@NonNull PrefChanges changes) {
+
+        if (!changes.isClear() && changes.size() == 1) {
+            Map.Entry<String, Object> change = changes.getValues().entrySet().iterator().next();
+            if (cache.set(change.getKey(), change.getValue())) {
+                return;
+            }
+        }
+        cache = changes.applyTo(cache);
+    }
+
+    private int stripeOf(@NonNull String key) {
+
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+
+    private void lockStripes() {
+
+        if (stripes != null) {
+            for (ReentrantLock stripe : stripes) {
+                stripe.lock();
+            }
+        }
+    }
+
+    private void unlockStripes() {
+
+        if (stripes != null) {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * The changes of concurrent writers which are committed together.
+     */
+    private static final class CommitGroup {
+
+        final PrefChanges changes = new PrefChanges();
+        boolean done;
+        boolean result;
+    }
+    // endregion
+
+    // region Write-behind
+    /**
+     * Commits the queued write-behind changes on the calling thread.
+     *
+     * @return the result of the commit, or true if nothing was queued. Failed changes stay queued
+     * and are retried by the background writer.
+     */
+    @WorkerThread
+    protected final boolean flush() {
+
+        flushLock.lock();
+        try {
+            PrefChanges changes;
+            List<String> replaced;
+            long count;
+            lock.lock();
+            try {
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                changes = pending;
+                replaced = pendingBlobs;
+                count = enqueuedCount;
+                pending = new PrefChanges();
+                pendingBlobs = new ArrayList<>();
+                inFlight = changes;
+
+            } finally {
+                lock.unlock();
+            }
+
+            long start = metrics != null ? System.nanoTime() : 0;
+            boolean result = commit(changes);
+            if (metrics != null) {
+                metrics.recordLatency(PrefMetrics.Operation.FLUSH, System.nanoTime() - start);
+            }
+
+            lock.lock();
+            try {
+                inFlight = null;
+                if (result) {
+                    durableCount = count;
+                    durableChanged.signalAll();
+                } else {
+                    changes.merge(pending);
+                    pending = changes;
+                    replaced.addAll(pendingBlobs);
+                    pendingBlobs = replaced;
+                    scheduleFlush();
+                }
+
+            } finally {
+                lock.unlock();
+            }
+            if (result) {
+                deleteBlobs(replaced);
+            }
+            return result;
+
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every change queued before this call has been committed by the write-behind
+     * writer. Returns at once when write-behind is disabled.
+     *
+     * @return false if the timeout elapsed first.
+     */
+    @WorkerThread
+    protected final boolean awaitDurable(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException {
+
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            long target = enqueuedCount;
+            while (durableCount < target) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = durableChanged.awaitNanos(nanos);
+            }
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     */
+    private void scheduleFlush() {
+
+        enqueuedCount++;
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        Writer.EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    flushScheduled = false;
+                } finally {
+                    lock.unlock();
+                }
+                flush();
+            }
+        }, writeBehindDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Holds the background writer shared by all write-behind stores, created on first use.
+     */
+    private static final class Writer {
+
+        static final ScheduledExecutorService EXECUTOR =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "DroidPref-Writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+    // endregion
+
+    // region Cache bounds
+    /**
+     * Evicts large String and Set values which were not read recently until the cached values
+     * weigh at most the given number of bytes, or only pinned values are left. Evicted values are
+     * reloaded from the storage when read again.
+     *
+     * @param byteLimit the weight to trim the cache to, zero evicts every value which isn't pinned.
+     */
+    protected final void trimCache(long byteLimit) {
+
+        lockStripes();
+        lock.lock();
+        try {
+            cache.evict(byteLimit);
+        } finally {
+            lock.unlock();
+            unlockStripes();
+        }
+    }
+
+    private void trimIfNeeded() {
+
+        long limit = cacheByteLimit;
+        if (limit >= 0 && cache.weight() > limit) {
+            trimCache(limit);
+        }
+    }
+
+    /**
+     * Reloads an evicted value, from the queued write-behind changes or the storage, and puts it
+     * back into the cache unless it was overwritten meanwhile.
+     *
+     * @return the value, or the default value if the key was removed meanwhile.
+     */
+    @Nullable
+    private Object reload(@NonNull String key, @Nullable Object defValue) {
+
+        Object value;
+        lockStripes();
+        lock.lock();
+        try {
+            PrefCache snapshot = cache;
+            int index = snapshot.indexOf(key);
+            if (index < 0) {
+                return defValue;
+            }
+            value = snapshot.getRef(index);
+            if (value != null) {
+                return value;
+            }
+            value = pending.getValues().get(key);
+            if (value == null && inFlight != null) {
+                value = inFlight.getValues().get(key);
+            }
+            if (value == null) {
+                value = snapshot.typeAt(index) == PrefCache.TYPE_STRING
+                        ? storage.getString(key, null) : storage.getStringSet(key, null);
+            }
+            if (value == null) {
+                return defValue;
+            }
+            snapshot.restore(index, value);
+
+        } finally {
+            lock.unlock();
+            unlockStripes();
+        }
+        trimIfNeeded();
+        return value;
+    }
+
+    /**
+     * Trims the cache of a store on memory pressure, without keeping the store alive.
+     */
+    private static final class TrimCallbacks implements ComponentCallbacks2 {
+
+        private final WeakReference<SharedPref> store;
+
+        TrimCallbacks(@NonNull SharedPref store) {
+            this.store = new WeakReference<>(store);
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+
+            SharedPref store = this.store.get();
+            if (store == null) {
+                return;
+            }
+            if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                store.trimCache(0);
+            } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                store.trimCache(store.cacheByteLimit / 2);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        }
+    }
+    // endregion
+
+    // region Observers
+    /**
+     * Observes changes of a single key, see {@link #addOnChangeListener(Collection, Executor,
+     * OnChangeListener)}.
+     */
+    protected final void addOnChangeListener(@NonNull String key, @NonNull Executor executor,
+                                             @NonNull OnChangeListener listener) {
+        addOnChangeListener(Collections.singleton(key), executor, listener);
+    }
+
+    /**
+     * Registers a listener which is notified on the given executor after writes of the given keys
+     * reached the cache. Writes arriving before a notification is delivered are collapsed into it,
+     * so a batch or a burst of puts results in one call with all the changed keys, and calls to
+     * the same listener never overlap. Listeners are called without holding any lock of the store.
+     *
+     * @param keys the keys to observe, or null to observe all keys.
+     */
+    protected final void addOnChangeListener(@Nullable Collection<String> keys,
+                                             @NonNull Executor executor,
+                                             @NonNull OnChangeListener listener) {
+        observers.add(new Observer(keys != null ? new HashSet<>(keys) : null, executor, listener));
+    }
+
+    /**
+     * Removes every registration of the listener, notifications which are already pending are
+     * dropped.
+     */
+    protected final void removeOnChangeListener(@NonNull OnChangeListener listener) {
+
+        for (Observer observer : observers) {
+            if (observer.listener == listener) {
+                observer.removed = true;
+                observers.remove(observer);
+            }
+        }
+    }
+
+    /**
+     * Offers changed keys to the observers, must not be called while holding {@link #lock}.
+     *
+     * @param before the cache before the changes, whose keys are reported as changed by a clear.
+     */
+    private void notifyChanged(@NonNull PrefChanges changes, @NonNull PrefCache before) {
+
+        if (observers.isEmpty()) {
+            return;
+        }
+        Set<String> keys = new HashSet<>(changes.getValues().keySet());
+        if (changes.isClear()) {
+            for (int index = 0; index < before.capacity(); index++) {
+                String key = before.keyAt(index);
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+        }
+        for (Observer observer : observers) {
+            observer.offer(keys);
+        }
+    }
+
+    public interface OnChangeListener {
+
+        /**
+         * @param keys the observed keys which changed since the previous call.
+         */
+        void onChanged(@NonNull Set<String> keys);
+    }
+
+    /**
+     * A registered listener with the keys changed since its last notification.
+     */
+    private static final class Observer implements Runnable {
+
+        final Set<String> keys;
+        final Executor executor;
+        final OnChangeListener listener;
+        volatile boolean removed;
+
+        private Set<String> changed = new HashSet<>();
+        private boolean scheduled;
+
+        Observer(@Nullable Set<String> keys, @NonNull Executor executor,
+                 @NonNull OnChangeListener listener) {
+
+            this.keys = keys;
+            this.executor = executor;
+            this.listener = listener;
+        }
+
+        void offer(@NonNull Set<String> keys) {
+
+            boolean schedule;
+            synchronized (this) {
+                for (String key : keys) {
+                    if (this.keys == null || this.keys.contains(key)) {
+                        changed.add(key);
+                    }
+                }
+                schedule = !scheduled && !changed.isEmpty();
+                scheduled |= schedule;
+            }
+            if (schedule) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+                Set<String> keys;
+                synchronized (this) {
+                    if (changed.isEmpty() || removed) {
+                        scheduled = false;
+                        return;
+                    }
+                    keys = changed;
+                    changed = new HashSet<>();
+                }
+                try {
+                    listener.onChanged(Collections.unmodifiableSet(keys));
+                } catch (RuntimeException | Error e) {
+                    // Keys changed while the listener ran are delivered by another run.
+                    boolean reschedule;
+                    synchronized (this) {
+                        reschedule = !changed.isEmpty() && !removed;
+                        scheduled = reschedule;
+                    }
+                    if (reschedule) {
+                        executor.execute(this);
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+    // endregion
+
+    // region Streams
+    /**
+     * Returns a publisher of the value of the key, which emits the current value on subscription
+     * and then the value after each change. Emissions are conflated: a subscriber without demand
+     * isn't sent the values it missed but only the latest one once it requests more, so a slow
+     * subscriber never queues up stale values.
+     * <p>
+     * Values are read from the cache and delivered on the given executor, one at a time per
+     * subscriber. A missing key emits the key's default value, see {@link PrefKey#getDefault()}.
+     */
+    @NonNull
+    protected final <T> PrefFlow.Publisher<T> values(@NonNull final PrefKey<T> key,
+                                                     @NonNull final Executor executor) {
+
+        return new PrefFlow.Publisher<T>() {
+            @Override
+            public void subscribe(@NonNull PrefFlow.Subscriber<? super T> subscriber) {
+                new ValueSubscription<>(key, executor, subscriber).start();
+            }
+        };
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> T read(@NonNull PrefKey<T> key) {
+
+        Object value;
+        switch (key.getType()) {
+            case PrefCache.TYPE_BOOLEAN:
+                value = getBoolean((PrefKey<Boolean>) (PrefKey<?>) key);
+                break;
+            case PrefCache.TYPE_INT:
+                value = getInt((PrefKey<Integer>) (PrefKey<?>) key);
+                break;
+            case PrefCache.TYPE_LONG:
+                value = getLong((PrefKey<Long>) (PrefKey<?>) key);
+                break;
+            case PrefCache.TYPE_FLOAT:
+                value = getFloat((PrefKey<Float>) (PrefKey<?>) key);
+                break;
+            case PrefCache.TYPE_STRING:
+                value = getString((PrefKey<String>) (PrefKey<?>) key);
+                break;
+            default:
+                value = getStringSet((PrefKey<Set<String>>) (PrefKey<?>) key);
+                break;
+        }
+        return (T) value;
+    }
+
+    /**
+     * A subscription to the values of a key. Changes only mark the value as dirty, the drain loop
+     * reads the latest value when there is demand, and the work-in-progress counter makes sure a
+     * single drain runs at a time.
+     */
+    private final class ValueSubscription<T> implements PrefFlow.Subscription, OnChangeListener,
+            Runnable {
+
+        private final PrefKey<T> key;
+        private final Executor executor;
+        private final PrefFlow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicBoolean dirty = new AtomicBoolean(true);
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        ValueSubscription(@NonNull PrefKey<T> key, @NonNull Executor executor,
+                          @NonNull PrefFlow.Subscriber<? super T> subscriber) {
+
+            this.key = key;
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+
+            // Listens before onSubscribe, which may request and read the value, so that no write
+            // after that read is missed. A cancel during onSubscribe removes the observer again.
+            observers.add(new Observer(Collections.singleton(key.getName()), DIRECT_EXECUTOR,
+                    this));
+            subscriber.onSubscribe(this);
+            if (cancelled) {
+                removeOnChangeListener(this);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested " + n + " items");
+            } else {
+                long current;
+                do {
+                    current = requested.get();
+                } while (!requested.compareAndSet(current,
+                        current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+
+            cancelled = true;
+            removeOnChangeListener(this);
+        }
+
+        @Override
+        public void onChanged(@NonNull Set<String> keys) {
+
+            dirty.set(true);
+            drain();
+        }
+
+        private void drain() {
+
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+
+            int missed = 1;
+            do {
+                while (!cancelled) {
+                    Throwable failure = error;
+                    if (failure != null) {
+                        cancel();
+                        subscriber.onError(failure);
+                        break;
+                    }
+                    if (requested.get() == 0 || !dirty.getAndSet(false)) {
+                        break;
+                    }
+                    T value;
+                    try {
+                        value = read(key);
+                    } catch (RuntimeException e) {
+                        error = e;
+                        continue;
+                    }
+                    subscriber.onNext(value);
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+    // endregion
+
+    // region Open timings
+    /**
+     * Sets a listener which is notified with the timings of every store opened afterwards, e.g. to
+     * track startup regressions.
+     */
+    public static void setOnOpenListener(@Nullable OnOpenListener listener) {
+        onOpenListener = listener;
+    }
+
+    public interface OnOpenListener {
+
+        /**
+         * Called on the thread which opened the store, right after it became ready.
+         *
+         * @param name the name of the store, see {@link #getName()}.
+         */
+        void onOpened(@NonNull String name, @NonNull OpenTimings timings);
+    }
+
+    /**
+     * Durations of the phases of opening a store, in nanoseconds.
+     */
+    public static final class OpenTimings {
+
+        private final boolean migrated;
+        private final long openNanos;
+        private final long migrateNanos;
+        private final long versionWriteNanos;
+        private final long cacheNanos;
+
+        OpenTimings(boolean migrated, long openNanos, long migrateNanos, long versionWriteNanos,
+                    long cacheNanos) {
+
+            this.migrated = migrated;
+            this.openNanos = openNanos;
+            this.migrateNanos = migrateNanos;
+            this.versionWriteNanos = versionWriteNanos;
+            this.cacheNanos = cacheNanos;
+        }
+
+        /**
+         * @return whether a migration ran, the migration and version write phases are zero
+         * otherwise.
+         */
+        public boolean isMigrated() {
+            return migrated;
+        }
+
+        /**
+         * @return the time spent opening the file and reading its values.
+         */
+        public long getOpenNanos() {
+            return openNanos;
+        }
+
+        public long getMigrateNanos() {
+            return migrateNanos;
+        }
+
+        /**
+         * @return the time spent writing the new version and reading back the migrated values.
+         */
+        public long getVersionWriteNanos() {
+            return versionWriteNanos;
+        }
+
+        /**
+         * @return the time spent filling the cache.
+         */
+        public long getCacheNanos() {
+            return cacheNanos;
+        }
+
+        public long getTotalNanos() {
+            return openNanos + migrateNanos + versionWriteNanos + cacheNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "OpenTimings{migrated=" + migrated + ", open=" + openNanos + "ns, migrate="
+                    + migrateNanos + "ns, versionWrite=" + versionWriteNanos + "ns, cache="
+                    + cacheNanos + "ns}";
+        }
+    }
+    // endregion
+
 }
@@ -0,0 +1,308 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link PrefStorage} which splits one logical store over a "hot" and a "cold" storage, so that
+ * commits of small, frequently written keys only rewrite the hot storage instead of every value,
+ * e.g. with two {@link FilePrefStorage}s.
+ * <p>
+ * Keys are hot if they are declared so, if they are found in the hot storage, or once they are
+ * written by the given number of commits within a window of commits; all other keys are cold. A
+ * key which turns hot is moved by writing it to the hot storage before removing it from the cold
+ * one, and the hot storage wins when a key is found in both, so an interrupted move loses nothing.
+ * Keys which were not declared hot and were not written during a whole window are moved back to
+ * the cold storage the same way, so keys which are only written now and then don't pile up in the
+ * hot storage.
+ * <p>
+ * A commit touching keys of both storages commits the hot storage first and then the cold one,
+ * it is atomic per storage but not across them. Keys only turn hot once both commits succeeded.
+ */
+public final class SplitPrefStorage implements PrefStorage {
+
+    /**
+     * The default number of commits over which writes are counted.
+     */
+    public static final int DEFAULT_WINDOW_COMMITS = 100;
+
+    private final PrefStorage hot;
+    private final PrefStorage cold;
+    private final Set<String> declaredHotKeys;
+    private final int promoteAfterWrites;
+    private final int windowCommits;
+
+    private Set<String> hotKeys;
+
+    /**
+     * The writes of the current window: the number of commits which wrote each cold key, the hot
+     * keys which were written, and the number of commits.
+     */
+    private final Map<String, Integer> writeCounts = new HashMap<>();
+    private final Set<String> writtenHotKeys = new HashSet<>();
+    private int windowCommitCount;
+
+    /**
+     * Counts writes over windows of {@link #DEFAULT_WINDOW_COMMITS} commits.
+     *
+     * @see #SplitPrefStorage(PrefStorage, PrefStorage, Collection, int, int)
+     */
+    public SplitPrefStorage(@NonNull PrefStorage hot, @NonNull PrefStorage cold,
+                            @NonNull Collection<String> hotKeys, int promoteAfterWrites) {
+        this(hot, cold, hotKeys, promoteAfterWrites, DEFAULT_WINDOW_COMMITS);
+    }
+
+    /**
+     * @param hotKeys            the keys to keep in the hot storage from the start.
+     * @param promoteAfterWrites the number of commits within a window writing a cold key after
+     *                           which it is moved to the hot storage, or zero to only use the
+     *                           declared keys.
+     * @param windowCommits      the number of commits of a window.
+     */
+    public SplitPrefStorage(@NonNull PrefStorage hot, @NonNull PrefStorage cold,
+                            @NonNull Collection<String> hotKeys, int promoteAfterWrites,
+                            int windowCommits) {
+
+        if (windowCommits <= 0 || promoteAfterWrites > windowCommits) {
+            throw new IllegalArgumentException("Invalid window of " + windowCommits
+                    + " commits for " + promoteAfterWrites + " writes");
+        }
+        this.hot = hot;
+        this.cold = cold;
+        this.declaredHotKeys = new HashSet<>(hotKeys);
+        this.promoteAfterWrites = promoteAfterWrites;
+        this.windowCommits = windowCommits;
+    }
+
+    @NonNull
+    @Override
+    public synchronized Map<String, ?> getAll() {
+
+        Map<String, Object> values = new HashMap<>(cold.getAll());
+        values.putAll(hot.getAll());
+        return values;
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        return storageOf(key).contains(key);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(@NonNull String key, boolean defValue) {
+        return storageOf(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public synchronized int getInt(@NonNull String key, int defValue) {
+        return storageOf(key).getInt(key, defValue);
+    }
+
+    @Override
+    public synchronized long getLong(@NonNull String key, long defValue) {
+        return storageOf(key).getLong(key, defValue);
+    }
+
+    @Override
+    public synchronized float getFloat(@NonNull String key, float defValue) {
+        return storageOf(key).getFloat(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(@NonNull String key, @Nullable String defValue) {
+        return storageOf(key).getString(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public synchronized Set<String> getStringSet(@NonNull String key,
+                                                 @Nullable Set<String> defValue) {
+        return storageOf(key).getStringSet(key, defValue);
+    }
+
+    @Override
+    public synchronized boolean commit(@NonNull PrefChanges changes) {
+
+        Set<String> promoted = new HashSet<>();
+        PrefChanges hotChanges = new PrefChanges();
+        PrefChanges coldChanges = new PrefChanges();
+        split(changes, promoted, hotChanges, coldChanges);
+        if (!hotChanges.isEmpty() && !hot.commit(hotChanges)) {
+            return false;
+        }
+        if (!coldChanges.isEmpty() && !cold.commit(coldChanges)) {
+            // The promoted keys were written to the hot storage, which wins while they stay there.
+            if (!promoted.isEmpty() && !hot.commit(removals(promoted))) {
+                hotKeys().addAll(promoted);
+            }
+            return false;
+        }
+        record(changes, promoted, true);
+        return true;
+    }
+
+    @Override
+    public synchronized void apply(@NonNull PrefChanges changes) {
+
+        Set<String> promoted = new HashSet<>();
+        PrefChanges hotChanges = new PrefChanges();
+        PrefChanges coldChanges = new PrefChanges();
+        split(changes, promoted, hotChanges, coldChanges);
+        if (!hotChanges.isEmpty()) {
+            hot.apply(hotChanges);
+        }
+        if (!coldChanges.isEmpty()) {
+            cold.apply(coldChanges);
+        }
+        record(changes, promoted, false);
+    }
+
+    /**
+     * @return whether the key is currently kept in the hot storage.
+     */
+    public synchronized boolean isHot(@NonNull String key) {
+        return hotKeys().contains(key);
+    }
+
+    /**
+     * Splits the changes by storage, without changing any state.
+     *
+     * @param promoted receives the cold keys which reach the write threshold with these changes,
+     *                 and are written to the hot storage.
+     */
+    private void split(@NonNull PrefChanges changes, @NonNull Set<String> promoted,
+                       @NonNull PrefChanges hotChanges, @NonNull PrefChanges coldChanges) {
+
+        boolean clear = changes.isClear();
+        Set<String> hotKeys = clear ? declaredHotKeys : hotKeys();
+        if (clear) {
+            hotChanges.clear();
+            coldChanges.clear();
+        }
+        for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            boolean isHot = hotKeys.contains(key);
+            if (!isHot && value != null && promoteAfterWrites > 0
+                    && (clear ? 0 : writeCount(key)) + 1 >= promoteAfterWrites) {
+                promoted.add(key);
+                isHot = true;
+            }
+            if (isHot) {
+                hotChanges.put(key, value);
+                // Drops the cold copy of a key which is being promoted or was left by a move.
+                if (!clear && cold.contains(key)) {
+                    coldChanges.remove(key);
+                }
+            } else {
+                coldChanges.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Counts the writes of committed changes and promotes the given keys, then ends the window
+     * once it is full.
+     *
+     * @param sync whether to commit, rather than apply, the moves of keys which are demoted.
+     */
+    private void record(@NonNull PrefChanges changes, @NonNull Set<String> promoted,
+                        boolean sync) {
+
+        Set<String> hotKeys = hotKeys();
+        if (changes.isClear()) {
+            hotKeys.retainAll(declaredHotKeys);
+            writeCounts.clear();
+            writtenHotKeys.clear();
+        }
+        hotKeys.addAll(promoted);
+        for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+            String key = entry.getKey();
+            if (hotKeys.contains(key)) {
+                writeCounts.remove(key);
+                writtenHotKeys.add(key);
+            } else if (entry.getValue() != null && promoteAfterWrites > 0) {
+                writeCounts.put(key, writeCount(key) + 1);
+            } else {
+                writeCounts.remove(key);
+            }
+        }
+        if (++windowCommitCount >= windowCommits) {
+            endWindow(sync);
+        }
+    }
+
+    /**
+     * Starts a new window, after demoting the keys which were promoted but not written during
+     * the window that ends.
+     */
+    private void endWindow(boolean sync) {
+
+        Set<String> demoted = new HashSet<>(hotKeys());
+        demoted.removeAll(declaredHotKeys);
+        demoted.removeAll(writtenHotKeys);
+        windowCommitCount = 0;
+        writeCounts.clear();
+        writtenHotKeys.clear();
+        if (demoted.isEmpty()) {
+            return;
+        }
+
+        // Moves the keys like promotions do, the other way around.
+        Map<String, ?> values = hot.getAll();
+        PrefChanges moved = new PrefChanges();
+        for (String key : demoted) {
+            Object value = values.get(key);
+            if (value != null) {
+                moved.put(key, value);
+            }
+        }
+        if (moved.isEmpty()) {
+            hotKeys.removeAll(demoted);
+        } else if (!sync) {
+            cold.apply(moved);
+            hot.apply(removals(moved.getValues().keySet()));
+            hotKeys.removeAll(demoted);
+        } else if (cold.commit(moved) && hot.commit(removals(moved.getValues().keySet()))) {
+            hotKeys.removeAll(demoted);
+        }
+    }
+
+    private int writeCount(@NonNull String key) {
+
+        Integer count = writeCounts.get(key);
+        return count != null ? count : 0;
+    }
+
+    @NonNull
+    private static PrefChanges removals(@NonNull Collection<String> keys) {
+
+        PrefChanges changes = new PrefChanges();
+        for (String key : keys) {
+            changes.remove(key);
+        }
+        return changes;
+    }
+
+    @NonNull
+    private PrefStorage storageOf(@NonNull String key) {
+        return hotKeys().contains(key) ? hot : cold;
+    }
+
+    @NonNull
+    private Set<String> hotKeys() {
+
+        if (hotKeys == null) {
+            hotKeys = new HashSet<>(declaredHotKeys);
+            hotKeys.addAll(hot.getAll().keySet());
+        }
+        return hotKeys;
+    }
+}
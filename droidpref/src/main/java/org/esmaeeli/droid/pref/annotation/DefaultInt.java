@@ -0,0 +1,18 @@
+package org.esmaeeli.droid.pref.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The default value of a int property of a {@link Preferences} interface, on its getter.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface DefaultInt {
+
+    int value();
+}
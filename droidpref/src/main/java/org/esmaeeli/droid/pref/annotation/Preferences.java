@@ -0,0 +1,35 @@
+package org.esmaeeli.droid.pref.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface from which the DroidPref annotation processor generates a
+ * {@link org.esmaeeli.droid.pref.SharedPref} implementation named after the interface with a
+ * "Pref" suffix, e.g. SettingsPref for Settings.
+ * <p>
+ * Every method of the interface must be a getter, i.e. {@code getX()} or, for booleans,
+ * {@code isX()}, or a setter {@code setX(value)} returning void or boolean. Supported types are
+ * boolean, int, long, float, String and Set&lt;String&gt;. The key of a property is its name
+ * starting with a lower case letter, unless the getter is annotated with {@link Key}. Defaults
+ * are set on the getter with {@link DefaultBoolean}, {@link DefaultInt}, {@link DefaultLong},
+ * {@link DefaultFloat} or {@link DefaultString}.
+ * <p>
+ * The generated class is not final, override {@code migrate(int, int)} in a subclass to migrate
+ * between versions.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Preferences {
+
+    /**
+     * The name of the preferences file.
+     */
+    String name();
+
+    int version() default 1;
+}
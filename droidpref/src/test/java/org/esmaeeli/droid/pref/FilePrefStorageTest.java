@@ -0,0 +1,125 @@
+package org.esmaeeli.droid.pref;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FilePrefStorageTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("prefs", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void commit_survivesReopen() {
+        Set<String> set = new HashSet<>(Arrays.asList("a", "\u00e9\u4e2d"));
+        PrefChanges changes = new PrefChanges();
+        changes.put("boolean", true);
+        changes.put("int", 1);
+        changes.put("long", 2L);
+        changes.put("float", 3f);
+        changes.put("string", "\u00e9\u4e2d");
+        changes.put("set", set);
+        assertTrue(new FilePrefStorage(file).commit(changes));
+
+        FilePrefStorage reopened = new FilePrefStorage(file);
+        assertTrue(reopened.getBoolean("boolean", false));
+        assertEquals(1, reopened.getInt("int", 0));
+        assertEquals(2L, reopened.getLong("long", 0));
+        assertEquals(3f, reopened.getFloat("float", 0), 0);
+        assertEquals("\u00e9\u4e2d", reopened.getString("string", null));
+        assertEquals(set, reopened.getStringSet("set", null));
+        assertEquals(6, reopened.getAll().size());
+    }
+
+    @Test
+    public void stringValues_stayEncodedUntilRead() {
+        Set<String> set = new HashSet<>(Arrays.asList("a", "b"));
+        PrefChanges changes = new PrefChanges();
+        changes.put("count", 3);
+        changes.put("name", "\u00e9\u4e2d");
+        changes.put("set", set);
+        assertTrue(new FilePrefStorage(file).commit(changes));
+
+        FilePrefStorage reopened = new FilePrefStorage(file);
+        Map<String, ?> encoded = reopened.getAllEncoded();
+        assertEquals(3, encoded.get("count"));
+        assertTrue(encoded.get("name") instanceof EncodedValue);
+        assertTrue(encoded.get("set") instanceof EncodedValue);
+        // Copies the encoded values as they are.
+        assertTrue(reopened.commit(SharedPrefTest.singleChange("count", 4)));
+        assertEquals("\u00e9\u4e2d", reopened.getAll().get("name"));
+
+        TestPref pref = new TestPref(new FilePrefStorage(file));
+        assertEquals("\u00e9\u4e2d", pref.getString("name", null));
+        assertEquals(set, pref.getStringSet("set", null));
+        assertEquals(4, pref.getInt("count", 0));
+    }
+
+    @Test
+    public void largeStrings_compressedAndDetectedOnRead() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("{\"id\":").append(i).append(",\"name\":\"\u00e9\u4e2d\"},");
+        }
+        String large = builder.toString();
+        PrefChanges changes = new PrefChanges();
+        changes.put("json", large);
+        changes.put("small", "value");
+        PrefMetrics.setEnabled(true);
+        try {
+            PrefMetrics.reset();
+            assertTrue(new FilePrefStorage(file, PrefCompression.fast(1024)).commit(changes));
+            assertTrue(file.length() < large.length() / 2);
+            PrefMetrics.CompressionSnapshot compression = PrefMetrics.compression();
+            assertEquals(1, compression.getCompressions());
+            assertTrue(compression.getBytesSaved() > large.length() / 2);
+
+            // Read without compression, and written back compressed without decompressing.
+            FilePrefStorage reopened = new FilePrefStorage(file);
+            assertTrue(reopened.commit(SharedPrefTest.singleChange("count", 1)));
+            assertEquals(0, PrefMetrics.compression().getDecompressions());
+            assertTrue(file.length() < large.length() / 2);
+
+            TestPref pref = new TestPref(new FilePrefStorage(file));
+            assertEquals(large, pref.getString("json", null));
+            assertEquals(large, pref.getString("json", null));
+            assertEquals("value", pref.getString("small", null));
+            assertEquals(1, PrefMetrics.compression().getDecompressions());
+        } finally {
+            PrefMetrics.setEnabled(false);
+            PrefMetrics.reset();
+        }
+    }
+
+    @Test
+    public void sharedPref_runsOnFileStorage() {
+        TestPref pref = new TestPref(new FilePrefStorage(file));
+        pref.putInt("count", 5);
+        pref.edit().putString("name", "value").remove("count").commit();
+
+        TestPref reopened = new TestPref(new FilePrefStorage(file));
+        assertEquals(0, reopened.migratedFrom);
+        assertFalse(reopened.containsKey("count"));
+        assertEquals("value", reopened.getString("name", null));
+    }
+}
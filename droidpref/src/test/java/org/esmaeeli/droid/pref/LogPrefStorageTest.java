@@ -0,0 +1,191 @@
+package org.esmaeeli.droid.pref;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class LogPrefStorageTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("prefs", ".log");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(file.getPath() + ".stamp").delete();
+    }
+
+    @Test
+    public void commits_replayOnReopen() throws IOException {
+        LogPrefStorage storage = new LogPrefStorage(file);
+        assertTrue(storage.commit(changes("a", 1, "b", "text")));
+        assertTrue(storage.commit(changes("a", 2, "b", null)));
+        storage.close();
+
+        LogPrefStorage reopened = new LogPrefStorage(file);
+        assertEquals(2, reopened.getInt("a", 0));
+        assertFalse(reopened.contains("b"));
+        reopened.close();
+    }
+
+    @Test
+    public void clear_dropsEarlierValues() throws IOException {
+        LogPrefStorage storage = new LogPrefStorage(file);
+        storage.commit(changes("a", 1, "b", 2));
+        PrefChanges clear = new PrefChanges();
+        clear.clear();
+        clear.put("c", 3);
+        storage.commit(clear);
+        storage.close();
+
+        LogPrefStorage reopened = new LogPrefStorage(file);
+        assertEquals(1, reopened.getAll().size());
+        assertEquals(3, reopened.getInt("c", 0));
+        reopened.close();
+    }
+
+    @Test
+    public void damagedTail_isDropped() throws IOException {
+        LogPrefStorage storage = new LogPrefStorage(file);
+        storage.commit(changes("a", 1, "b", 2));
+        long intact = file.length();
+        storage.commit(changes("a", 5, "b", 6));
+        storage.close();
+
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.setLength(file.length() - 3);
+        raw.close();
+
+        LogPrefStorage reopened = new LogPrefStorage(file);
+        assertEquals(1, reopened.getInt("a", 0));
+        assertEquals(2, reopened.getInt("b", 0));
+        assertEquals(intact, file.length());
+        assertTrue(reopened.commit(changes("a", 7, "b", 8)));
+        reopened.close();
+        assertEquals(7, new LogPrefStorage(file).getInt("a", 0));
+    }
+
+    @Test
+    public void singleKeyUpdate_appendsOnlyTheChange() throws IOException {
+        LogPrefStorage storage = new LogPrefStorage(file);
+        PrefChanges bulk = new PrefChanges();
+        for (int i = 0; i < 10000; i++) {
+            bulk.put("key" + i, "value" + i);
+        }
+        storage.commit(bulk);
+        storage.compact();
+        long before = file.length();
+
+        storage.commit(changes("key5", "updated", "key6", null));
+        assertTrue(file.length() - before < 64);
+        storage.close();
+        assertEquals("updated", new LogPrefStorage(file).getString("key5", null));
+    }
+
+    @Test
+    public void compact_keepsValuesAndShrinksLog() throws IOException {
+        LogPrefStorage storage = new LogPrefStorage(file);
+        for (int i = 0; i < 100; i++) {
+            storage.commit(changes("counter", i, "name", "value"));
+        }
+        long before = file.length();
+        storage.compact();
+        assertTrue(file.length() < before);
+        storage.close();
+
+        LogPrefStorage reopened = new LogPrefStorage(file);
+        assertEquals(99, reopened.getInt("counter", 0));
+        assertEquals("value", reopened.getString("name", null));
+        reopened.close();
+    }
+
+    @Test
+    public void multiProcess_refreshReturnsOtherCommits() throws IOException {
+        LogPrefStorage first = new LogPrefStorage(file, true);
+        LogPrefStorage second = new LogPrefStorage(file, true);
+        assertTrue(second.getAll().isEmpty());
+        assertTrue(first.commit(changes("a", 1, "b", 2)));
+        assertEquals(0, second.getInt("a", 0));
+
+        long generation = second.getGeneration();
+        assertTrue(first.commit(changes("a", 3, "b", null)));
+        assertNotEquals(generation, second.getGeneration());
+        PrefChanges refreshed = second.refresh();
+        assertEquals(3, refreshed.getValues().get("a"));
+        assertTrue(refreshed.getValues().containsKey("b"));
+        assertEquals(3, second.getInt("a", 0));
+        assertTrue(second.refresh().isEmpty());
+
+        // A commit catches up before appending, a compaction forces a reload.
+        assertTrue(second.commit(changes("c", 4, "d", 5)));
+        first.compact();
+        assertTrue(second.commit(changes("a", 6, "d", null)));
+        refreshed = first.refresh();
+        assertEquals(new HashSet<>(Arrays.asList("a", "c", "d")),
+                refreshed.getValues().keySet());
+        assertNull(refreshed.getValues().get("d"));
+        assertEquals(6, first.getInt("a", 0));
+        assertEquals(4, first.getInt("c", 0));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void multiProcess_storesSeeEachOthersWrites() throws IOException {
+        LogPrefStorage first = new LogPrefStorage(file, true);
+        LogPrefStorage second = new LogPrefStorage(file, true);
+        TestPref firstPref = new TestPref(first);
+        TestPref secondPref = new TestPref(second);
+        final List<Set<String>> notified = new ArrayList<>();
+        secondPref.addOnChangeListener("count", new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new SharedPref.OnChangeListener() {
+            @Override
+            public void onChanged(Set<String> keys) {
+                notified.add(keys);
+            }
+        });
+
+        assertTrue(firstPref.putInt("count", 1));
+        assertEquals(1, secondPref.getInt("count", 0));
+        assertEquals(1, notified.size());
+
+        // The newer local write wins over the change it caught up with.
+        assertTrue(first.commit(changes("count", 2, "name", "first")));
+        assertTrue(secondPref.putInt("count", 3));
+        assertEquals(3, secondPref.getInt("count", 0));
+        assertEquals("first", secondPref.getString("name", null));
+        assertEquals(3, firstPref.getInt("count", 0));
+        first.close();
+        second.close();
+    }
+
+    private static PrefChanges changes(String key1, Object value1, String key2, Object value2) {
+        PrefChanges changes = new PrefChanges();
+        changes.put(key1, value1);
+        changes.put(key2, value2);
+        return changes;
+    }
+}
@@ -0,0 +1,272 @@
+package org.esmaeeli.droid.pref;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PrefBlobsTest {
+
+    private File directory;
+    private final MemoryPrefStorage storage = new MemoryPrefStorage();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("blobs").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void smallBytes_areStoredInline() {
+        TestPref pref = create();
+        byte[] value = {0, 1, (byte) 0xFF, 42};
+        assertTrue(pref.putBytes("key", value));
+        assertTrue(storage.getString("key", null).startsWith("\uFDD0b64:"));
+        assertEquals(0, directory.list().length);
+
+        ByteBuffer bytes = pref.getBytes("key");
+        assertTrue(bytes.isReadOnly());
+        assertArrayEquals(value, toArray(bytes));
+        assertNull(pref.getBytes("missing"));
+    }
+
+    @Test
+    public void largeBytes_areStoredInBlobFiles() throws IOException {
+        TestPref pref = create();
+        byte[] value = new byte[10000];
+        Arrays.fill(value, (byte) 7);
+        assertTrue(pref.putBytes("key", value));
+        assertEquals(1, directory.list().length);
+        assertTrue(storage.getString("key", null).length() < 64);
+
+        ByteBuffer mapped = pref.getBytes("key");
+        assertTrue(mapped.isReadOnly());
+        assertArrayEquals(value, toArray(mapped));
+
+        value[0] = 1;
+        assertTrue(pref.putBytes("key", value));
+        assertEquals(1, directory.list().length);
+        InputStream in = pref.openBytes("key");
+        assertEquals(1, in.read());
+        in.close();
+
+        assertTrue(pref.putBytes("key", (byte[]) null));
+        assertEquals(0, directory.list().length);
+        assertFalse(storage.contains("key"));
+    }
+
+    @Test
+    public void open_deletesUnreferencedBlobs() throws IOException {
+        TestPref pref = create();
+        assertTrue(pref.putBytes("kept", new byte[5000]));
+        assertTrue(new File(directory, "orphan.blob").createNewFile());
+        assertTrue(new File(directory, "leftover.blob.tmp").createNewFile());
+        assertEquals(3, directory.list().length);
+
+        TestPref reopened = create();
+        assertEquals(1, directory.list().length);
+        assertEquals(5000, reopened.getBytes("kept").remaining());
+    }
+
+    @Test
+    public void removedBlobs_areDeletedOnceCommitted() {
+        TestPref pref = create();
+        assertTrue(pref.putBytes("first", new byte[5000]));
+        assertTrue(pref.putBytes("second", new byte[5000]));
+        assertTrue(pref.putString("text", "value"));
+        assertEquals(2, directory.list().length);
+
+        assertTrue(pref.deleteKey("first"));
+        assertEquals(1, directory.list().length);
+        assertTrue(pref.putBytes("first", new byte[5000]));
+        assertTrue(pref.clearAll());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void writeBehind_keepsReplacedBlobsUntilFlushed() {
+        TestPref pref = new TestPref(storage) {
+            @Override
+            protected File getBlobDirectory() {
+                return directory;
+            }
+
+            @Override
+            protected long getWriteBehindDelay() {
+                return TimeUnit.HOURS.toMillis(1);
+            }
+        };
+        byte[] value = new byte[5000];
+        assertTrue(pref.putBytes("key", value));
+        assertTrue(pref.flush());
+        String durable = storage.getString("key", null);
+
+        value[0] = 1;
+        assertTrue(pref.putBytes("key", value));
+        value[0] = 2;
+        assertTrue(pref.putBytes("key", value));
+        // The durable reference still needs its blob until the new one is flushed.
+        assertEquals(3, directory.list().length);
+        assertEquals(durable, storage.getString("key", null));
+        assertTrue(new File(directory, durable.substring(durable.indexOf(':') + 1)).isFile());
+
+        assertTrue(pref.flush());
+        assertEquals(1, directory.list().length);
+        assertEquals(2, pref.getBytes("key").get(0));
+    }
+
+    @Test
+    public void plainStrings_areNeverReferences() throws IOException {
+        TestPref pref = create();
+        assertTrue(pref.putString("name", "blob:name"));
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        pref.exportTo(export);
+        try {
+            pref.getBytes("name");
+            fail("Read a String as bytes");
+        } catch (ClassCastException expected) {
+        }
+        try {
+            pref.putString("name", "\uFDD0blob:name");
+            fail("Stored a reference as a String");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        TestPref target = new TestPref(new MemoryPrefStorage());
+        assertTrue(target.importFrom(new ByteArrayInputStream(export.toByteArray()), false));
+        assertEquals("blob:name", target.getString("name", null));
+    }
+
+    @Test
+    public void export_writesEncodedInlineBytesAsBytes() throws IOException {
+        File file = File.createTempFile("prefs", ".bin");
+        assertTrue(file.delete());
+        try {
+            assertTrue(new TestPref(new FilePrefStorage(file)).putBytes("key", new byte[]{1, 2}));
+            ByteArrayOutputStream export = new ByteArrayOutputStream();
+            new TestPref(new FilePrefStorage(file)).exportTo(export);
+
+            TestPref target = new TestPref(new MemoryPrefStorage());
+            assertTrue(target.importFrom(new ByteArrayInputStream(export.toByteArray()), false));
+            assertArrayEquals(new byte[]{1, 2}, toArray(target.getBytes("key")));
+
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void craftedReferences_neverNameOtherFiles() throws IOException {
+        File victim = new File(directory.getParentFile(), directory.getName() + ".victim");
+        assertTrue(victim.createNewFile());
+        try {
+            String crafted = "\uFDD0blob:../" + victim.getName();
+            ByteArrayOutputStream export = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(export);
+            out.writeInt(PrefArchive.MAGIC);
+            PrefArchive.writeValue(out, "key", crafted);
+            out.writeByte(PrefArchive.RECORD_END);
+            TestPref pref = create();
+            try {
+                pref.importFrom(new ByteArrayInputStream(export.toByteArray()), false);
+                fail("Imported a reference as a String");
+            } catch (IOException expected) {
+            }
+            assertFalse(storage.contains("key"));
+
+            PrefChanges changes = new PrefChanges();
+            changes.put("key", crafted);
+            storage.commit(changes);
+            pref = create();
+            try {
+                pref.getBytes("key");
+                fail("Read a crafted reference");
+            } catch (IllegalStateException expected) {
+            }
+            assertTrue(pref.deleteKey("key"));
+            assertTrue(victim.isFile());
+
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            victim.delete();
+        }
+    }
+
+    @Test
+    public void base64_matchesRfc4648() {
+        String[] texts = {"", "f", "fo", "foo", "foob", "fooba", "foobar"};
+        String[] encoded = {"", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"};
+        for (int i = 0; i < texts.length; i++) {
+            byte[] value = texts[i].getBytes(PrefCodec.UTF_8);
+            assertEquals(encoded[i], PrefBlobs.encodeBase64(value));
+            assertArrayEquals(value, PrefBlobs.decodeBase64("b64:" + encoded[i], 4));
+        }
+    }
+
+    @Test
+    public void export_streamsBlobFiles() throws IOException {
+        TestPref source = create();
+        byte[] large = new byte[20000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        assertTrue(source.putBytes("large", large));
+        assertTrue(source.putBytes("small", new byte[]{1, 2}));
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        source.exportTo(export);
+
+        final MemoryPrefStorage targetStorage = new MemoryPrefStorage();
+        TestPref target = new TestPref(targetStorage) {
+            @Override
+            protected File getBlobDirectory() {
+                return directory;
+            }
+        };
+        assertTrue(target.importFrom(new ByteArrayInputStream(export.toByteArray()), false));
+        assertArrayEquals(large, toArray(target.getBytes("large")));
+        assertArrayEquals(new byte[]{1, 2}, toArray(target.getBytes("small")));
+        assertTrue(targetStorage.getString("small", null).startsWith("\uFDD0b64:"));
+        assertFalse(storage.getString("large", null)
+                .equals(targetStorage.getString("large", null)));
+    }
+
+    private TestPref create() {
+        return new TestPref(storage) {
+            @Override
+            protected File getBlobDirectory() {
+                return directory;
+            }
+        };
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
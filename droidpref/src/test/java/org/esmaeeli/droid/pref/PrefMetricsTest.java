@@ -0,0 +1,72 @@
+package org.esmaeeli.droid.pref;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PrefMetricsTest {
+
+    @Before
+    public void setUp() {
+        PrefMetrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        PrefMetrics.setEnabled(false);
+        PrefMetrics.reset();
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.putInt("a", 1);
+        pref.getInt("a", -1);
+        assertTrue(PrefMetrics.snapshot().isEmpty());
+    }
+
+    @Test
+    public void enabled_countsCacheAndOperations() throws Exception {
+        PrefMetrics.setEnabled(true);
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.putInt("a", 1);
+        pref.putInt("b", 2);
+        pref.deleteKey("b");
+        pref.getInt("a", -1);
+        pref.getInt("b", -1);
+        pref.edit().putInt("c", 3).putInt("d", 4).commit();
+
+        PrefMetrics.Snapshot snapshot = PrefMetrics.snapshot().get("test");
+        assertEquals(1, snapshot.getCacheHits());
+        // The migration reads "old_count" through to the storage.
+        assertEquals(2, snapshot.getCacheMisses());
+        assertEquals(2, snapshot.getLatency(PrefMetrics.Operation.PUT).getCount());
+        assertEquals(2, snapshot.getLockWait(PrefMetrics.Operation.PUT).getCount());
+        assertEquals(1, snapshot.getLatency(PrefMetrics.Operation.DELETE).getCount());
+        assertEquals(1, snapshot.getLatency(PrefMetrics.Operation.BATCH).getCount());
+        assertEquals(4, snapshot.getCommitLatency().getCount());
+        assertEquals(1, snapshot.getLatency(PrefMetrics.Operation.CACHE_ALL).getCount());
+
+        StringBuilder out = new StringBuilder();
+        PrefMetrics.export(out);
+        assertTrue(out.toString().contains("test PUT latency count=2"));
+    }
+
+    @Test
+    public void histogram_percentileIsBucketUpperBound() {
+        PrefMetrics.HistogramSnapshot histogram =
+                new PrefMetrics.HistogramSnapshot(new long[64], 0);
+        assertEquals(0, histogram.getPercentileNanos(99));
+
+        long[] buckets = new long[64];
+        buckets[4] = 99; // 8 to 15 ns
+        buckets[11] = 1; // 1024 to 2047 ns
+        histogram = new PrefMetrics.HistogramSnapshot(buckets, 99 * 10 + 1500);
+        assertEquals(100, histogram.getCount());
+        assertEquals(15, histogram.getPercentileNanos(50));
+        assertEquals(15, histogram.getPercentileNanos(99));
+        assertEquals(2047, histogram.getPercentileNanos(100));
+    }
+}
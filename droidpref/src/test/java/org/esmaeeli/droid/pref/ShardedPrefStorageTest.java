@@ -0,0 +1,123 @@
+package org.esmaeeli.droid.pref;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedPrefStorageTest {
+
+    private final List<SharedPrefTest.CountingStorage> shards = new ArrayList<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void commit_writesOnlyTouchedShards() {
+        ShardedPrefStorage storage = create(4);
+        PrefChanges changes = new PrefChanges();
+        for (int i = 0; i < 100; i++) {
+            changes.put("key" + i, i);
+        }
+        assertTrue(storage.commit(changes));
+        for (SharedPrefTest.CountingStorage shard : shards) {
+            assertEquals(1, shard.commits);
+            assertFalse(shard.getAll().isEmpty());
+        }
+        assertEquals(100, storage.getAll().size());
+        assertEquals(42, storage.getInt("key42", -1));
+
+        assertTrue(storage.commit(SharedPrefTest.singleChange("key42", 0)));
+        int commits = 0;
+        for (SharedPrefTest.CountingStorage shard : shards) {
+            commits += shard.commits;
+        }
+        assertEquals(5, commits);
+
+        PrefChanges clear = new PrefChanges();
+        clear.clear();
+        assertTrue(storage.commit(clear));
+        assertTrue(storage.getAll().isEmpty());
+    }
+
+    @Test
+    public void failedCommit_rollsBackTheOtherShards() {
+        SharedPrefTest.FailingStorage failing = new SharedPrefTest.FailingStorage();
+        shards.add(failing);
+        ShardedPrefStorage storage = create(3);
+        PrefChanges changes = new PrefChanges();
+        for (int i = 0; i < 100; i++) {
+            changes.put("key" + i, i);
+        }
+        assertTrue(storage.commit(changes));
+        TestPref pref = new TestPref(storage);
+
+        failing.failing = true;
+        SharedPref.Batch batch = pref.edit();
+        for (int i = 0; i < 100; i++) {
+            batch.putInt("key" + i, -i);
+        }
+        batch.remove("key0");
+        assertFalse(batch.commit());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, storage.getInt("key" + i, -1));
+            assertEquals(i, pref.getInt("key" + i, -1));
+        }
+
+        PrefChanges clear = new PrefChanges();
+        clear.clear();
+        assertFalse(storage.commit(clear));
+        assertEquals(101, storage.getAll().size());
+    }
+
+    @Test
+    public void sharedPref_stripedWritersOnAllShards() throws Exception {
+        ShardedPrefStorage storage = create(4);
+        final TestPref pref = new TestPref(storage) {
+            @Override
+            protected int getLockStripeCount() {
+                return 8;
+            }
+        };
+        final int threads = 4;
+        for (int t = 0; t < threads; t++) {
+            pref.putInt("key" + t, -1);
+        }
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final String key = "key" + t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        pref.putInt(key, i);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (int t = 0; t < threads; t++) {
+            assertEquals(99, pref.getInt("key" + t, -1));
+            assertEquals(99, storage.getInt("key" + t, -1));
+        }
+        assertEquals(TestPref.VERSION, storage.getInt("file_version", -1));
+    }
+
+    private ShardedPrefStorage create(int count) {
+        for (int i = 0; i < count; i++) {
+            shards.add(new SharedPrefTest.CountingStorage());
+        }
+        return new ShardedPrefStorage(shards, executor);
+    }
+}
@@ -0,0 +1,881 @@
+package org.esmaeeli.droid.pref;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SharedPrefTest {
+
+    @Test
+    public void putAndGet_allTypes() {
+        MemoryPrefStorage storage = new MemoryPrefStorage();
+        TestPref pref = new TestPref(storage);
+        Set<String> set = new HashSet<>(Arrays.asList("a", "b"));
+
+        assertTrue(pref.putBoolean("boolean", true));
+        assertTrue(pref.putInt("int", 42));
+        assertTrue(pref.putLong("long", 1L << 40));
+        assertTrue(pref.putFloat("float", 1.5f));
+        assertTrue(pref.putString("string", "value"));
+        assertTrue(pref.putStringSet("set", set));
+
+        assertTrue(pref.getBoolean("boolean", false));
+        assertEquals(42, pref.getInt("int", -1));
+        assertEquals(1L << 40, pref.getLong("long", -1));
+        assertEquals(1.5f, pref.getFloat("float", -1), 0);
+        assertEquals("value", pref.getString("string", null));
+        assertEquals(set, pref.getStringSet("set", null));
+        assertEquals("value", storage.getString("string", null));
+    }
+
+    @Test
+    public void get_missingKeyReturnsDefault() {
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        assertEquals(-1, pref.getInt("missing", -1));
+        assertNull(pref.getString("missing", null));
+        assertFalse(pref.containsKey("missing"));
+    }
+
+    @Test
+    public void put_overwritesAndChangesType() {
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.putInt("key", 1);
+        pref.putInt("key", 2);
+        assertEquals(2, pref.getInt("key", -1));
+        pref.putString("key", "text");
+        assertEquals("text", pref.getString("key", null));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void get_wrongTypeThrows() {
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.putString("key", "text");
+        pref.getInt("key", -1);
+    }
+
+    @Test
+    public void deleteAndClear() {
+        MemoryPrefStorage storage = new MemoryPrefStorage();
+        TestPref pref = new TestPref(storage);
+        pref.putInt("a", 1);
+        pref.putInt("b", 2);
+
+        assertTrue(pref.deleteKey("a"));
+        assertFalse(pref.containsKey("a"));
+        assertFalse(storage.contains("a"));
+
+        assertTrue(pref.clearAll());
+        assertEquals(-1, pref.getInt("b", -1));
+        assertTrue(storage.getAll().isEmpty());
+    }
+
+    @Test
+    public void putNullString_removesKey() {
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.putString("key", "text");
+        pref.putString("key", null);
+        assertFalse(pref.containsKey("key"));
+    }
+
+    @Test
+    public void open_cachesStoredValues() {
+        MemoryPrefStorage storage = new MemoryPrefStorage(
+                Collections.singletonMap("count", 7));
+        storage.commit(versionChanges(TestPref.VERSION));
+        TestPref pref = new TestPref(storage);
+        assertEquals(0, pref.migratedFrom);
+        assertEquals(7, pref.getInt("count", -1));
+    }
+
+    @Test
+    public void open_migratesAndWritesVersion() {
+        MemoryPrefStorage storage = new MemoryPrefStorage(
+                Collections.singletonMap("old_count", 3));
+        TestPref pref = new TestPref(storage);
+        assertEquals(1, pref.migratedFrom);
+        assertEquals(3, pref.getInt("count", -1));
+        assertFalse(pref.containsKey("old_count"));
+        assertEquals(TestPref.VERSION, storage.getInt("file_version", 0));
+    }
+
+    @Test
+    public void keyHandles_readAndWriteThroughSlots() {
+        PrefKey<Integer> count = PrefKey.ofInt("count", 7);
+        PrefKey<String> name = PrefKey.ofString("name", "none");
+        PrefKey<Set<String>> tags = PrefKey.ofStringSet("tags", null);
+        MemoryPrefStorage storage = new MemoryPrefStorage();
+        TestPref pref = new TestPref(storage);
+
+        assertEquals(7, pref.getInt(count));
+        assertEquals("none", pref.getString(name));
+        assertNull(pref.getStringSet(tags));
+
+        assertTrue(pref.putInt(count, 1));
+        assertEquals(1, pref.getInt(count));
+        assertTrue(pref.putInt(count, 2));
+        assertEquals(2, pref.getInt(count));
+        // A new key changes the layout, the handle resolves again.
+        assertTrue(pref.putString(name, "pref"));
+        assertEquals("pref", pref.getString(name));
+        assertEquals(2, pref.getInt(count));
+        assertEquals(2, pref.getInt("count", -1));
+        assertEquals(2, storage.getInt("count", -1));
+
+        assertTrue(pref.deleteKey(count));
+        assertFalse(pref.containsKey(count));
+        assertEquals(7, pref.getInt(count));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void keyHandles_wrongTypeThrows() {
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.putString("count", "text");
+        pref.getInt(PrefKey.ofInt("count", 0));
+    }
+
+    @Test
+    public void groupedRead_seesWritesEntirelyOrNotAtAll() throws Exception {
+        final PrefKey<Integer> first = PrefKey.ofInt("first", 0);
+        final PrefKey<Integer> second = PrefKey.ofInt("second", 0);
+        PrefKey<String> host = PrefKey.ofString("host", "localhost");
+        final TestPref pref = new TestPref(new MemoryPrefStorage());
+
+        PrefValues values = pref.read(first, host);
+        assertFalse(values.contains(first));
+        assertEquals(0, values.getInt(first));
+        assertEquals("localhost", values.getString(host));
+        pref.putString("host", "example.com");
+        pref.read(values);
+        assertTrue(values.contains(host));
+        assertEquals("example.com", values.getString(host));
+
+        // Single-key puts update the cache in place, one key after the other.
+        pref.edit().putInt("first", 0).putInt("second", 0).commit();
+        final int writes = 20000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= writes; i++) {
+                    pref.putInt(first, i);
+                    pref.putInt(second, i);
+                }
+            }
+        });
+        writer.start();
+        PrefValues group = new PrefValues(second, first);
+        do {
+            pref.read(group);
+            int difference = group.getInt(first) - group.getInt(second);
+            assertTrue("Torn read " + difference, difference == 0 || difference == 1);
+        } while (writer.isAlive());
+        writer.join();
+        pref.read(group);
+        assertEquals(writes, group.getInt(first));
+        assertEquals(writes, group.getInt(second));
+
+        // A read overlapped by an in-place write fails validation.
+        PrefCache cache = PrefCache.of(Collections.singletonMap("first", 1));
+        long stamp = cache.beginRead();
+        assertTrue(stamp >= 0);
+        assertTrue(cache.set("first", 2));
+        assertFalse(cache.validate(stamp));
+        assertTrue(cache.validate(cache.beginRead()));
+    }
+
+    @Test
+    public void batch_commitsOnceAndAppliesInOrder() {
+        CountingStorage storage = new CountingStorage();
+        TestPref pref = new TestPref(storage);
+        pref.putInt("stale", 1);
+        int commits = storage.commits;
+
+        assertTrue(pref.edit()
+                .putInt("stale", 2)
+                .clear()
+                .putString("a", "x")
+                .putLong("b", 5L)
+                .remove("a")
+                .commit());
+
+        assertEquals(commits + 1, storage.commits);
+        assertFalse(pref.containsKey("stale"));
+        assertFalse(pref.containsKey("a"));
+        assertEquals(5L, pref.getLong("b", -1));
+        assertEquals(5L, storage.getLong("b", 0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void batch_canOnlyBeFinishedOnce() {
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        SharedPref.Batch batch = pref.edit().putInt("a", 1);
+        batch.commit();
+        batch.commit();
+    }
+
+    @Test
+    public void openTimings_skipMigrationPhasesWithoutMigration() {
+        final List<SharedPref.OpenTimings> timings = new ArrayList<>();
+        SharedPref.setOnOpenListener(new SharedPref.OnOpenListener() {
+            @Override
+            public void onOpened(String name, SharedPref.OpenTimings openTimings) {
+                timings.add(openTimings);
+            }
+        });
+        try {
+            MemoryPrefStorage storage = new MemoryPrefStorage();
+            new TestPref(storage);
+            new TestPref(storage);
+        } finally {
+            SharedPref.setOnOpenListener(null);
+        }
+
+        assertEquals(2, timings.size());
+        assertTrue(timings.get(0).isMigrated());
+        assertFalse(timings.get(1).isMigrated());
+        assertEquals(0, timings.get(1).getMigrateNanos());
+        assertEquals(0, timings.get(1).getVersionWriteNanos());
+    }
+
+    @Test
+    public void concurrentWriters_shareCommits() throws Exception {
+        final CountingStorage storage = new CountingStorage();
+        storage.commitDelayMillis = 2;
+        final TestPref pref = new TestPref(storage);
+        int threads = 8;
+        final int puts = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final String key = "key" + t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < puts; i++) {
+                        pref.putInt(key, i);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        for (int t = 0; t < threads; t++) {
+            assertEquals(puts - 1, pref.getInt("key" + t, -1));
+            assertEquals(puts - 1, storage.getInt("key" + t, -1));
+        }
+        assertTrue(storage.commits < threads * puts);
+    }
+
+    @Test
+    public void asyncOpen_blocksGettersUntilReady() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CountingStorage storage = new CountingStorage() {
+            @Override
+            public Map<String, ?> getAll() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.getAll();
+            }
+        };
+        storage.commit(singleChange("count", 9));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TestPref pref = new TestPref(storage, executor);
+        assertFalse(pref.getReadyFuture().isDone());
+        release.countDown();
+        assertEquals(9, pref.getInt("count", -1));
+        assertTrue(pref.getReadyFuture().isDone());
+        executor.shutdown();
+    }
+
+    @Test
+    public void writeBehind_coalescesAndFlushes() throws Exception {
+        CountingStorage storage = new CountingStorage();
+        TestPref pref = new TestPref(storage) {
+            @Override
+            protected long getWriteBehindDelay() {
+                return TimeUnit.HOURS.toMillis(1);
+            }
+        };
+        int commits = storage.commits;
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(pref.putInt("count", i));
+        }
+        pref.deleteKey("missing");
+        assertEquals(9, pref.getInt("count", -1));
+        assertEquals(commits, storage.commits);
+        assertFalse(storage.contains("count"));
+
+        assertTrue(pref.flush());
+        assertTrue(pref.awaitDurable(0, TimeUnit.MILLISECONDS));
+        assertEquals(commits + 1, storage.commits);
+        assertEquals(9, storage.getInt("count", -1));
+    }
+
+    @Test
+    public void boundedCache_evictsAndReloadsLargeValues() {
+        CountingStorage storage = new CountingStorage();
+        TestPref pref = new TestPref(storage) {
+            @Override
+            protected long getCacheByteLimit() {
+                return 4096;
+            }
+        };
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'a');
+        String large = new String(chars);
+        pref.putString("small", "value");
+        pref.putInt("count", 1);
+        for (int i = 0; i < 3; i++) {
+            pref.putString("large" + i, large + i);
+        }
+
+        // Changes made behind the store only show for values which were evicted.
+        int evicted = 0;
+        for (int i = 0; i < 3; i++) {
+            storage.delegate.commit(singleChange("large" + i, large + "changed"));
+            if (pref.getString("large" + i, null).endsWith("changed")) {
+                evicted++;
+            }
+        }
+        assertTrue(evicted >= 1);
+
+        storage.delegate.commit(singleChange("large0", large + "reloaded"));
+        storage.delegate.commit(singleChange("small", "changed"));
+        pref.trimCache(0);
+        assertEquals(large + "reloaded", pref.getString("large0", null));
+        assertEquals("value", pref.getString("small", null));
+        assertEquals(1, pref.getInt("count", -1));
+    }
+
+    @Test
+    public void boundedCache_releasesEvictedValuesOfAFileStorage() throws Exception {
+        File file = File.createTempFile("prefs", ".bin");
+        assertTrue(file.delete());
+        try {
+            char[] chars = new char[1000];
+            Arrays.fill(chars, 'a');
+            String large = new String(chars);
+            new FilePrefStorage(file).commit(singleChange("large", large));
+            TestPref pref = new TestPref(new FilePrefStorage(file)) {
+                @Override
+                protected long getCacheByteLimit() {
+                    return 0;
+                }
+            };
+            WeakReference<String> decoded =
+                    new WeakReference<>(pref.getString("large", null));
+            assertEquals(large, decoded.get());
+
+            pref.trimCache(0);
+            for (int i = 0; i < 50 && decoded.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull(decoded.get());
+            assertEquals(large, pref.getString("large", null));
+
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void boundedCache_reloadsQueuedValuesFromWriteBehind() {
+        CountingStorage storage = new CountingStorage();
+        TestPref pref = new TestPref(storage) {
+            @Override
+            protected long getWriteBehindDelay() {
+                return TimeUnit.HOURS.toMillis(1);
+            }
+
+            @Override
+            protected long getCacheByteLimit() {
+                return 0;
+            }
+        };
+        Set<String> large = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            large.add("element" + i);
+        }
+        assertTrue(pref.putStringSet("set", large));
+        pref.trimCache(0);
+        assertFalse(storage.contains("set"));
+        assertEquals(large, pref.getStringSet("set", null));
+        assertTrue(pref.flush());
+        assertEquals(large, storage.getStringSet("set", null));
+    }
+
+    @Test
+    public void exportAndImport_restoreInOneCommit() throws Exception {
+        TestPref source = new TestPref(new MemoryPrefStorage());
+        SharedPref.Batch batch = source.edit();
+        for (int i = 0; i < 1000; i++) {
+            batch.putInt("int" + i, i);
+        }
+        batch.putBoolean("boolean", true).putLong("long", 2L).putFloat("float", 3f)
+                .putString("string", "\"quoted\"\n")
+                .putStringSet("set", new HashSet<>(Collections.singletonList("a")));
+        assertTrue(batch.commit());
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        source.exportTo(export);
+
+        CountingStorage storage = new CountingStorage();
+        TestPref target = new TestPref(storage);
+        target.putString("other", "value");
+        int commits = storage.commits;
+        assertTrue(target.importFrom(new ByteArrayInputStream(export.toByteArray()), true));
+        assertEquals(commits + 1, storage.commits);
+        assertEquals(999, target.getInt("int999", -1));
+        assertTrue(target.getBoolean("boolean", false));
+        assertEquals(2L, target.getLong("long", 0));
+        assertEquals(3f, target.getFloat("float", 0), 0);
+        assertEquals("\"quoted\"\n", target.getString("string", null));
+        assertEquals(Collections.singleton("a"), target.getStringSet("set", null));
+        assertFalse(target.containsKey("other"));
+        assertEquals(TestPref.VERSION, storage.getInt("file_version", 0));
+        assertEquals(1005 + 1, storage.getAll().size());
+
+        TestPref small = new TestPref(new MemoryPrefStorage());
+        small.putString("name", "\"a\"\u0001");
+        small.putStringSet("set", Collections.singleton("b"));
+        StringBuilder json = new StringBuilder();
+        small.exportJson(json);
+        assertTrue(json.toString(), json.toString().contains("\"name\":\"\\\"a\\\"\\u0001\""));
+        assertTrue(json.toString(), json.toString().contains("\"set\":[\"b\"]"));
+        assertFalse(json.toString(), json.toString().contains("file_version"));
+    }
+
+    @Test
+    public void stripedPuts_doNotWaitForOtherKeys() throws Exception {
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSlow = new CountDownLatch(1);
+        CountingStorage storage = new CountingStorage() {
+            @Override
+            public boolean commit(PrefChanges changes) {
+                if (changes.getValues().containsKey("slow")) {
+                    slowStarted.countDown();
+                    try {
+                        releaseSlow.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return delegate.commit(changes);
+            }
+        };
+        storage.delegate.commit(singleChange("slow", 0));
+        storage.delegate.commit(singleChange("fast", 0));
+        final TestPref pref = new TestPref(storage) {
+            @Override
+            protected int getLockStripeCount() {
+                return 16;
+            }
+        };
+        // "slow" and "fast" hash to different stripes of 16.
+
+        Thread slow = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pref.putInt("slow", 1);
+            }
+        });
+        slow.start();
+        assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(pref.putInt("fast", 1));
+        assertEquals(1, pref.getInt("fast", -1));
+        assertEquals(0, pref.getInt("slow", -1));
+
+        releaseSlow.countDown();
+        slow.join();
+        assertEquals(1, pref.getInt("slow", -1));
+
+        pref.putString("fast", "text");
+        assertTrue(pref.clearAll());
+        assertTrue(storage.getAll().isEmpty());
+        assertEquals(-1, pref.getInt("slow", -1));
+    }
+
+    @Test
+    public void primitivePuts_updateTheCacheInPlace() {
+        TestPref striped = new TestPref(new MemoryPrefStorage()) {
+            @Override
+            protected int getLockStripeCount() {
+                return 16;
+            }
+        };
+        for (TestPref pref : Arrays.asList(new TestPref(new MemoryPrefStorage()), striped)) {
+            assertTrue(pref.putInt("int", 1));
+            assertTrue(pref.putLong("long", 1L));
+            assertTrue(pref.putFloat("float", 1f));
+            assertTrue(pref.putBoolean("boolean", false));
+            PrefCache layout = pref.cache();
+
+            assertTrue(pref.putInt("int", 300));
+            assertTrue(pref.putLong("long", Long.MIN_VALUE));
+            assertTrue(pref.putFloat("float", -0.5f));
+            assertTrue(pref.putBoolean("boolean", true));
+            assertSame(layout, pref.cache());
+            assertEquals(300, pref.getInt("int", -1));
+            assertEquals(Long.MIN_VALUE, pref.getLong("long", -1L));
+            assertEquals(-0.5f, pref.getFloat("float", -1f), 0f);
+            assertTrue(pref.getBoolean("boolean", false));
+
+            // Another type or a new key changes the layout.
+            assertTrue(pref.putString("int", "text"));
+            assertFalse(layout == pref.cache());
+        }
+    }
+
+    @Test
+    public void stripedMode_writersJoinTheGroupDuringACommit() throws Exception {
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSlow = new CountDownLatch(1);
+        CountingStorage storage = new CountingStorage() {
+            @Override
+            public boolean commit(PrefChanges changes) {
+                if (changes.getValues().containsKey("slow")) {
+                    slowStarted.countDown();
+                    try {
+                        releaseSlow.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.commit(changes);
+            }
+        };
+        final TestPref pref = new TestPref(storage) {
+            @Override
+            protected int getLockStripeCount() {
+                return 16;
+            }
+        };
+
+        // New keys take the group commit path.
+        Thread slow = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pref.putInt("slow", 1);
+            }
+        });
+        slow.start();
+        assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+        int commits = storage.commits;
+        List<Thread> writers = new ArrayList<>();
+        for (final String key : Arrays.asList("a", "b", "c")) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    pref.putInt(key, 1);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            while (writer.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+
+        releaseSlow.countDown();
+        slow.join();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        // The slow commit and one shared by the three writers.
+        assertEquals(commits + 2, storage.commits);
+        assertEquals(1, pref.getInt("a", -1));
+        assertEquals(1, pref.getInt("c", -1));
+        assertEquals(1, storage.getInt("b", -1));
+    }
+
+    @Test
+    public void observers_collapseChangesPerListener() {
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        final List<Set<String>> all = new ArrayList<>();
+        final List<Set<String>> some = new ArrayList<>();
+        SharedPref.OnChangeListener allListener = new SharedPref.OnChangeListener() {
+            @Override
+            public void onChanged(Set<String> keys) {
+                all.add(new HashSet<>(keys));
+            }
+        };
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.addOnChangeListener((Collection<String>) null, executor, allListener);
+        pref.addOnChangeListener(Arrays.asList("a", "c"), executor,
+                new SharedPref.OnChangeListener() {
+                    @Override
+                    public void onChanged(Set<String> keys) {
+                        some.add(new HashSet<>(keys));
+                    }
+                });
+
+        pref.putInt("a", 1);
+        pref.putInt("a", 2);
+        pref.edit().putInt("b", 1).putInt("c", 1).commit();
+        assertEquals(2, queued.size());
+        for (Runnable runnable : queued) {
+            runnable.run();
+        }
+        queued.clear();
+        assertEquals(Collections.singletonList(new HashSet<>(Arrays.asList("a", "b", "c"))), all);
+        assertEquals(Collections.singletonList(new HashSet<>(Arrays.asList("a", "c"))), some);
+
+        pref.putInt("b", 2);
+        pref.removeOnChangeListener(allListener);
+        pref.clearAll();
+        for (Runnable runnable : queued) {
+            runnable.run();
+        }
+        assertEquals(1, all.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), some.get(1));
+    }
+
+    @Test
+    public void observers_deliverChangesMadeWhileAListenerThrows() {
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        final List<Set<String>> received = new ArrayList<>();
+        final TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.addOnChangeListener((Collection<String>) null, executor,
+                new SharedPref.OnChangeListener() {
+                    @Override
+                    public void onChanged(Set<String> keys) {
+                        received.add(new HashSet<>(keys));
+                        if (keys.contains("a")) {
+                            pref.putInt("b", 1);
+                            throw new IllegalStateException("Listener failed");
+                        }
+                    }
+                });
+
+        pref.putInt("a", 1);
+        assertEquals(1, queued.size());
+        try {
+            queued.remove(0).run();
+            fail("Swallowed the listener's exception");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, queued.size());
+        queued.remove(0).run();
+        assertEquals(Arrays.asList(Collections.singleton("a"), Collections.singleton("b")),
+                received);
+        assertTrue(queued.isEmpty());
+    }
+
+    @Test
+    public void values_emitsLatestValueOnDemand() {
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        final List<Integer> received = new ArrayList<>();
+        final PrefFlow.Subscription[] subscription = new PrefFlow.Subscription[1];
+        TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.values(PrefKey.ofInt("count", -1), direct).subscribe(
+                new PrefFlow.Subscriber<Integer>() {
+                    @Override
+                    public void onSubscribe(PrefFlow.Subscription s) {
+                        subscription[0] = s;
+                    }
+
+                    @Override
+                    public void onNext(Integer item) {
+                        received.add(item);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        fail(throwable.toString());
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        fail("Completed");
+                    }
+                });
+        assertTrue(received.isEmpty());
+
+        subscription[0].request(1);
+        assertEquals(Collections.singletonList(-1), received);
+        pref.putInt("count", 1);
+        pref.putInt("count", 2);
+        pref.putInt("other", 0);
+        assertEquals(1, received.size());
+
+        subscription[0].request(5);
+        assertEquals(Arrays.asList(-1, 2), received);
+        pref.putInt("count", 3);
+        pref.deleteKey("count");
+        assertEquals(Arrays.asList(-1, 2, 3, -1), received);
+
+        subscription[0].cancel();
+        pref.putInt("count", 4);
+        assertEquals(4, received.size());
+    }
+
+    @Test
+    public void values_deliversWritesDuringOnSubscribe() {
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        final List<Integer> received = new ArrayList<>();
+        final TestPref pref = new TestPref(new MemoryPrefStorage());
+        pref.values(PrefKey.ofInt("count", -1), direct).subscribe(
+                new PrefFlow.Subscriber<Integer>() {
+                    @Override
+                    public void onSubscribe(PrefFlow.Subscription s) {
+                        s.request(Long.MAX_VALUE);
+                        // Commits after the first value was read, before onSubscribe returns.
+                        pref.putInt("count", 1);
+                    }
+
+                    @Override
+                    public void onNext(Integer item) {
+                        received.add(item);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        fail(throwable.toString());
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        fail("Completed");
+                    }
+                });
+        assertEquals(Arrays.asList(-1, 1), received);
+        pref.putInt("count", 2);
+        assertEquals(Arrays.asList(-1, 1, 2), received);
+    }
+
+    static PrefChanges versionChanges(int version) {
+        return singleChange("file_version", version);
+    }
+
+    static PrefChanges singleChange(String key, Object value) {
+        PrefChanges changes = new PrefChanges();
+        changes.put(key, value);
+        return changes;
+    }
+
+    /**
+     * Counts commits, optionally making each of them take some time.
+     */
+    static class CountingStorage implements PrefStorage {
+
+        final MemoryPrefStorage delegate = new MemoryPrefStorage();
+        volatile int commits;
+        long commitDelayMillis;
+
+        @Override
+        public Map<String, ?> getAll() {
+            return delegate.getAll();
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return delegate.contains(key);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return delegate.getBoolean(key, defValue);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return delegate.getInt(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return delegate.getLong(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return delegate.getFloat(key, defValue);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return delegate.getString(key, defValue);
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValue) {
+            return delegate.getStringSet(key, defValue);
+        }
+
+        @Override
+        public synchronized boolean commit(PrefChanges changes) {
+            commits++;
+            if (commitDelayMillis > 0) {
+                try {
+                    Thread.sleep(commitDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return delegate.commit(changes);
+        }
+
+        @Override
+        public void apply(PrefChanges changes) {
+            commit(changes);
+        }
+    }
+
+    static class FailingStorage extends CountingStorage {
+
+        volatile boolean failing;
+
+        @Override
+        public synchronized boolean commit(PrefChanges changes) {
+            return !failing && super.commit(changes);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.esmaeeli.droid.pref;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.esmaeeli.droid.pref.SharedPrefTest.singleChange;
+import static org.junit.Assert.*;
+
+public class SplitPrefStorageTest {
+
+    private final SharedPrefTest.CountingStorage hot = new SharedPrefTest.CountingStorage();
+    private final SharedPrefTest.CountingStorage cold = new SharedPrefTest.CountingStorage();
+
+    @Test
+    public void declaredHotKeys_onlyCommitHotStorage() {
+        SplitPrefStorage storage = new SplitPrefStorage(hot, cold,
+                Collections.singleton("last_seen"), 0);
+        assertTrue(storage.commit(singleChange("json", "{}")));
+        assertEquals(1, cold.commits);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(storage.commit(singleChange("last_seen", (long) i)));
+        }
+        assertEquals(10, hot.commits);
+        assertEquals(1, cold.commits);
+        assertEquals(9L, storage.getLong("last_seen", -1));
+        assertEquals("{}", storage.getString("json", null));
+        assertEquals(2, storage.getAll().size());
+    }
+
+    @Test
+    public void frequentlyWrittenKeys_movedToHotStorage() {
+        SplitPrefStorage storage = new SplitPrefStorage(hot, cold,
+                Collections.<String>emptySet(), 3);
+        storage.commit(singleChange("count", 1));
+        storage.commit(singleChange("count", 2));
+        assertFalse(storage.isHot("count"));
+        assertEquals(2, cold.getInt("count", -1));
+
+        storage.commit(singleChange("count", 3));
+        assertTrue(storage.isHot("count"));
+        assertEquals(3, hot.getInt("count", -1));
+        assertFalse(cold.contains("count"));
+        assertEquals(3, storage.getInt("count", -1));
+
+        // A reopened storage finds the key in the hot storage.
+        SplitPrefStorage reopened = new SplitPrefStorage(hot, cold,
+                Collections.<String>emptySet(), 3);
+        assertTrue(reopened.isHot("count"));
+        assertEquals(3, reopened.getInt("count", -1));
+    }
+
+    @Test
+    public void rarelyWrittenKeys_stayCold() {
+        SplitPrefStorage storage = new SplitPrefStorage(hot, cold,
+                Collections.<String>emptySet(), 3, 10);
+        for (int i = 0; i < 50; i++) {
+            storage.commit(singleChange(i % 5 == 0 ? "rare" : "other" + i, i));
+        }
+        assertFalse(storage.isHot("rare"));
+        assertEquals(45, cold.getInt("rare", -1));
+    }
+
+    @Test
+    public void idleHotKeys_movedBackToColdStorage() {
+        SplitPrefStorage storage = new SplitPrefStorage(hot, cold,
+                Collections.singleton("declared"), 2, 10);
+        storage.commit(singleChange("declared", 0));
+        storage.commit(singleChange("count", 1));
+        storage.commit(singleChange("count", 2));
+        assertTrue(storage.isHot("count"));
+
+        // The window ends after ten commits, the next one passes without writing "count".
+        for (int i = 0; i < 16; i++) {
+            storage.commit(singleChange("other" + i, i));
+        }
+        assertTrue(storage.isHot("count"));
+        storage.commit(singleChange("last", 0));
+        assertFalse(storage.isHot("count"));
+        assertFalse(hot.contains("count"));
+        assertEquals(2, cold.getInt("count", -1));
+        assertEquals(2, storage.getInt("count", -1));
+        assertTrue(storage.isHot("declared"));
+    }
+
+    @Test
+    public void failedCommits_doNotPromote() {
+        SharedPrefTest.FailingStorage failingHot = new SharedPrefTest.FailingStorage();
+        SharedPrefTest.FailingStorage failingCold = new SharedPrefTest.FailingStorage();
+        SplitPrefStorage storage = new SplitPrefStorage(failingHot, failingCold,
+                Collections.<String>emptySet(), 2);
+        assertTrue(storage.commit(singleChange("count", 1)));
+
+        failingHot.failing = true;
+        assertFalse(storage.commit(singleChange("count", 2)));
+        assertFalse(storage.isHot("count"));
+        assertEquals(1, storage.getInt("count", -1));
+
+        failingHot.failing = false;
+        failingCold.failing = true;
+        assertFalse(storage.commit(singleChange("count", 3)));
+        assertFalse(storage.isHot("count"));
+        assertFalse(failingHot.contains("count"));
+        assertEquals(1, storage.getInt("count", -1));
+
+        failingCold.failing = false;
+        assertTrue(storage.commit(singleChange("count", 4)));
+        assertTrue(storage.isHot("count"));
+        assertFalse(failingCold.contains("count"));
+        assertEquals(4, storage.getInt("count", -1));
+    }
+
+    @Test
+    public void sharedPref_presentsOneStore() {
+        SplitPrefStorage storage = new SplitPrefStorage(hot, cold,
+                Collections.singleton("count"), 0);
+        TestPref pref = new TestPref(storage);
+        pref.putInt("count", 1);
+        pref.putString("name", "value");
+        pref.edit().putInt("count", 2).putString("name", "other").commit();
+        assertEquals(2, pref.getInt("count", -1));
+        assertEquals("other", pref.getString("name", null));
+        assertEquals(2, hot.getInt("count", -1));
+        assertFalse(hot.contains("name"));
+
+        assertTrue(pref.clearAll());
+        assertTrue(hot.getAll().isEmpty());
+        assertTrue(cold.getAll().isEmpty());
+    }
+}
@@ -0,0 +1,42 @@
+package org.esmaeeli.droid.pref;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A minimal store for the tests, which call the protected API from the same package.
+ */
+class TestPref extends SharedPref {
+
+    static final int VERSION = 2;
+
+    int migratedFrom;
+
+    TestPref(@NonNull PrefStorage storage) {
+        super(storage);
+    }
+
+    TestPref(@NonNull PrefStorage storage, Executor executor) {
+        super(storage, executor);
+    }
+
+    @Override
+    protected int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    protected String getName() {
+        return "test";
+    }
+
+    @Override
+    protected void migrate(int oldVersion, int newVersion) {
+        migratedFrom = oldVersion;
+        if (containsKey("old_count")) {
+            putInt("count", getInt("old_count", 0));
+            deleteKey("old_count");
+        }
+    }
+}